@@ -2,10 +2,12 @@ package client;
 
 import io.grpc.ManagedChannel;
 import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 import kvGrpc.KeyValueGrpc;
 import kvGrpc.Keyvalue;
 import util.LoggerUtil;
 
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
@@ -21,23 +23,56 @@ public class KVClient {
   }
 
   public String executeGet(String key) {
-    Keyvalue.GetRequest getRequest = Keyvalue.GetRequest.newBuilder().setKey(key).build();
+    return executeGet(key, Keyvalue.ReadConsistency.DEFAULT, 0);
+  }
 
-    Keyvalue.GetResponse response = kvStub.withDeadlineAfter(5, TimeUnit.SECONDS).get(getRequest);
-    if (response.getResponseCode().equals(Status.OK.toString())) {
-      LoggerUtil.writeLog(Level.INFO, response.getResponseMessage());
+  /**
+   * @param consistency how recent the value has to be, see ReadConsistency
+   * @param maxStalenessMillis only used with BOUNDED_STALENESS
+   */
+  public String executeGet(String key, Keyvalue.ReadConsistency consistency, long maxStalenessMillis) {
+    Keyvalue.GetResponse response = executeVersionedGet(key, consistency, maxStalenessMillis);
+    if (response != null && response.getResponseCode().equals(Status.OK.toString())) {
       return response.getValue();
+    }
+    return "";
+  }
+
+  /**
+   * Same as executeGet, but also gives the version of the value, which can be passed to executeCompareAndSet.
+   * @return the response holding the value and its version, or null if the request was rejected
+   */
+  public Keyvalue.GetResponse executeVersionedGet(String key, Keyvalue.ReadConsistency consistency,
+                                                  long maxStalenessMillis) {
+    Keyvalue.GetRequest getRequest = Keyvalue.GetRequest.newBuilder().setKey(key).setConsistency(consistency)
+            .setMaxStalenessMillis(maxStalenessMillis).build();
+
+    Keyvalue.GetResponse response;
+    try {
+      response = kvStub.withDeadlineAfter(5, TimeUnit.SECONDS).get(getRequest);
+    } catch (StatusRuntimeException e) {
+      logRejection(e);
+      return null;
+    }
+    if (response.getResponseCode().equals(Status.OK.toString())) {
+      LoggerUtil.writeLog(Level.INFO, response.getResponseMessage() + " at version " + response.getVersion());
     } else {
       LoggerUtil.writeLog(Level.SEVERE, response.getResponseMessage());
     }
-    return "";
+    return response;
   }
 
   public void executePut(String key, String value) {
     Keyvalue.PutRequest putRequest = Keyvalue.PutRequest.newBuilder().setKey(key)
             .setValue(value).build();
 
-    Keyvalue.PutResponse response = kvStub.withDeadlineAfter(5, TimeUnit.SECONDS).put(putRequest);
+    Keyvalue.PutResponse response;
+    try {
+      response = kvStub.withDeadlineAfter(5, TimeUnit.SECONDS).put(putRequest);
+    } catch (StatusRuntimeException e) {
+      logRejection(e);
+      return;
+    }
     if (!response.getResponseCode().equals(Status.OK.toString())) {
       LoggerUtil.writeLog(Level.SEVERE, response.getResponseMessage());
     } else {
@@ -48,11 +83,137 @@ public class KVClient {
   public void executeDelete(String key) {
     Keyvalue.DeleteRequest deleteRequest = Keyvalue.DeleteRequest.newBuilder().setKey(key).build();
 
-    Keyvalue.DeleteResponse response = kvStub.withDeadlineAfter(5, TimeUnit.SECONDS).delete(deleteRequest);
+    Keyvalue.DeleteResponse response;
+    try {
+      response = kvStub.withDeadlineAfter(5, TimeUnit.SECONDS).delete(deleteRequest);
+    } catch (StatusRuntimeException e) {
+      logRejection(e);
+      return;
+    }
     if (!response.getResponseCode().equals(Status.OK.toString())) {
       LoggerUtil.writeLog(Level.SEVERE, response.getResponseMessage());
     } else {
       LoggerUtil.writeLog(Level.INFO, response.getResponseMessage());
     }
   }
+
+  /**
+   * Sets the key to newValue only if it currently holds expectedValue, in a single round trip.
+   * @param expectedValue the value the key must hold, null if the key must not exist yet
+   * @return true if the value was set
+   */
+  public boolean executeCompareAndSet(String key, String expectedValue, String newValue) {
+    return executeCompareAndSet(key, expectedValue, null, newValue);
+  }
+
+  /**
+   * Sets the key only if it still holds the expected value and version. When both are null the key must not exist.
+   * @param expectedValue the value the key must hold, null to not check the value
+   * @param expectedVersion the version the key must be at, as returned by executeVersionedGet, null to not check it
+   * @return true if the value was set
+   */
+  public boolean executeCompareAndSet(String key, String expectedValue, Long expectedVersion, String newValue) {
+    Keyvalue.CompareAndSetRequest.Builder requestBuilder = Keyvalue.CompareAndSetRequest.newBuilder().setKey(key)
+            .setNewValue(newValue);
+    if (expectedValue != null) {
+      requestBuilder.setExpectedValue(expectedValue);
+    }
+    if (expectedVersion != null) {
+      requestBuilder.setExpectedVersion(expectedVersion);
+    }
+
+    Keyvalue.CompareAndSetResponse response;
+    try {
+      response = kvStub.withDeadlineAfter(5, TimeUnit.SECONDS).compareAndSet(requestBuilder.build());
+    } catch (StatusRuntimeException e) {
+      logRejection(e);
+      return false;
+    }
+    if (!response.getResponseCode().equals(Status.OK.toString())) {
+      LoggerUtil.writeLog(Level.SEVERE, response.getResponseMessage());
+      return false;
+    }
+    LoggerUtil.writeLog(Level.INFO, response.getResponseMessage());
+    return true;
+  }
+
+  /**
+   * Atomically adds delta to the number stored at the key, a missing key counts as 0.
+   * @return the new value, or null if the increment failed
+   */
+  public Long executeIncrement(String key, long delta) {
+    Keyvalue.IncrementRequest incrementRequest = Keyvalue.IncrementRequest.newBuilder().setKey(key)
+            .setDelta(delta).build();
+
+    Keyvalue.IncrementResponse response;
+    try {
+      response = kvStub.withDeadlineAfter(5, TimeUnit.SECONDS).increment(incrementRequest);
+    } catch (StatusRuntimeException e) {
+      logRejection(e);
+      return null;
+    }
+    if (!response.getResponseCode().equals(Status.OK.toString())) {
+      LoggerUtil.writeLog(Level.SEVERE, response.getResponseMessage());
+      return null;
+    }
+    LoggerUtil.writeLog(Level.INFO, response.getResponseMessage());
+    return response.getValue();
+  }
+
+  /**
+   * Atomically appends the value to the one stored at the key.
+   * @return the new value, or null if the append failed
+   */
+  public String executeAppend(String key, String value) {
+    Keyvalue.AppendRequest appendRequest = Keyvalue.AppendRequest.newBuilder().setKey(key)
+            .setValue(value).build();
+
+    Keyvalue.AppendResponse response;
+    try {
+      response = kvStub.withDeadlineAfter(5, TimeUnit.SECONDS).append(appendRequest);
+    } catch (StatusRuntimeException e) {
+      logRejection(e);
+      return null;
+    }
+    if (!response.getResponseCode().equals(Status.OK.toString())) {
+      LoggerUtil.writeLog(Level.SEVERE, response.getResponseMessage());
+      return null;
+    }
+    LoggerUtil.writeLog(Level.INFO, response.getResponseMessage());
+    return response.getValue();
+  }
+
+  /**
+   * Applies all the writes or none of them, in a single two phase commit round.
+   * @return true if the transaction committed
+   */
+  public boolean executeTransaction(List<Keyvalue.WriteOperation> operations) {
+    Keyvalue.TransactionRequest transactionRequest = Keyvalue.TransactionRequest.newBuilder()
+            .addAllOperations(operations).build();
+
+    Keyvalue.TransactionResponse response;
+    try {
+      response = kvStub.withDeadlineAfter(5, TimeUnit.SECONDS).transaction(transactionRequest);
+    } catch (StatusRuntimeException e) {
+      logRejection(e);
+      return false;
+    }
+    if (!response.getResponseCode().equals(Status.OK.toString())) {
+      LoggerUtil.writeLog(Level.SEVERE, response.getResponseMessage());
+      return false;
+    }
+    LoggerUtil.writeLog(Level.INFO, response.getResponseMessage());
+    return true;
+  }
+
+  // the server sheds load with RESOURCE_EXHAUSTED and drops requests it cannot finish before the deadline
+  private void logRejection(StatusRuntimeException e) {
+    if (e.getStatus().getCode() == Status.Code.RESOURCE_EXHAUSTED) {
+      LoggerUtil.writeLog(Level.WARNING, "Server is overloaded, request was rejected. Please retry later.");
+    } else if (e.getStatus().getCode() == Status.Code.DEADLINE_EXCEEDED) {
+      LoggerUtil.writeLog(Level.SEVERE, "Request did not finish before its deadline: " + e.getStatus().getDescription());
+    } else {
+      LoggerUtil.writeLog(Level.SEVERE, "Request failed: " + e.getStatus());
+    }
+  }
 }
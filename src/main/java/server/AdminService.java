@@ -0,0 +1,65 @@
+package server;
+
+import java.util.List;
+import java.util.logging.Level;
+
+import io.grpc.stub.StreamObserver;
+import kvGrpc.Admin;
+import kvGrpc.KVAdminGrpc;
+import util.LoggerUtil;
+
+/**
+ * Operator facing service that exposes the hot key profiler of this server.
+ */
+public class AdminService extends KVAdminGrpc.KVAdminImplBase {
+  private static final int DEFAULT_TOP_K = 10;
+
+  private final HotKeyProfiler profiler;
+  private final int port;
+
+  public AdminService(HotKeyProfiler profiler, int port) {
+    this.profiler = profiler;
+    this.port = port;
+  }
+
+  @Override
+  public void topKeys(Admin.TopKeysRequest request, StreamObserver<Admin.TopKeysResponse> responseObserver) {
+    int k = request.getK() > 0 ? request.getK() : DEFAULT_TOP_K;
+    long windowMillis = profiler.windowMillis();
+    List<HotKeyProfiler.KeyStats> stats = request.getMetric() == Admin.HotKeyMetric.LOCK_WAIT
+            ? profiler.topByLockWait(k) : profiler.topByRequests(k);
+    if (request.getReset()) {
+      profiler.reset();
+    }
+
+    Admin.TopKeysResponse.Builder responseBuilder = Admin.TopKeysResponse.newBuilder()
+            .setWindowMillis(windowMillis).setOriginServer(String.valueOf(port));
+    for (HotKeyProfiler.KeyStats each : stats) {
+      responseBuilder.addKeys(Admin.KeyStats.newBuilder().setKey(each.getKey())
+              .setRequestCount(each.getRequestCount())
+              .setRequestsPerSecond(each.getRequestCount() * 1000.0 / windowMillis)
+              .setLockWaitMicros(each.getLockWaitNanos() / 1000));
+    }
+    LoggerUtil.writeLog(Level.INFO, "Top " + k + " keys by " + request.getMetric() + " requested");
+    responseObserver.onNext(responseBuilder.build());
+    responseObserver.onCompleted();
+  }
+
+  /**
+   * Logs the current top keys by both metrics and starts a new window, used for periodic reporting.
+   * @param k number of keys to log per metric
+   */
+  public void logTopKeys(int k) {
+    long windowMillis = profiler.windowMillis();
+    StringBuilder report = new StringBuilder("Hot keys over the last " + windowMillis + " ms. By requests:");
+    for (HotKeyProfiler.KeyStats each : profiler.topByRequests(k)) {
+      report.append(String.format(" %s=%.1f/s", each.getKey(), each.getRequestCount() * 1000.0 / windowMillis));
+    }
+    report.append(". By lock wait:");
+    for (HotKeyProfiler.KeyStats each : profiler.topByLockWait(k)) {
+      report.append(String.format(" %s=%dus", each.getKey(), each.getLockWaitNanos() / 1000));
+    }
+    profiler.reset();
+    LoggerUtil.writeLog(Level.INFO, report.toString());
+  }
+}
@@ -0,0 +1,119 @@
+package server;
+
+import java.util.Collection;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import io.grpc.Context;
+import io.grpc.Deadline;
+
+/**
+ * Decides whether a client request gets served or shed before it ties up a gRPC thread. Writes are bounded
+ * by their own, smaller limit inside the overall in-flight limit, which leaves headroom for GETs when write
+ * load exceeds what two phase commit can sustain. Writes are also refused when too many requests already
+ * queue on the same key, and when the caller's deadline leaves too little time for a two phase commit round.
+ */
+public class AdmissionController {
+  private final Semaphore inFlight;
+  private final Semaphore inFlightWrites;
+  private final int maxKeyQueueDepth;
+  private final long minCommitMillis;
+  private final LockByKey lock;
+
+  /**
+   * Whether a write was admitted, and if not, why.
+   */
+  public enum Admission {
+    ADMITTED,
+    // a limit was hit, the client may retry later
+    OVERLOADED,
+    // the client's deadline leaves too little time for a commit round, retrying with the same deadline won't help
+    DEADLINE_TOO_CLOSE
+  }
+
+  /**
+   * @param maxInFlight maximum number of client requests being served at once, reads and writes combined
+   * @param maxInFlightWrites maximum number of PUT and DELETE requests being served at once
+   * @param maxKeyQueueDepth maximum number of requests allowed to wait on the lock of a single key
+   * @param minCommitMillis time a write needs left before its deadline to start a commit round, and again before
+   *                        each prepare it sends
+   * @param lock the key lock shared with the two phase commit service
+   */
+  public AdmissionController(int maxInFlight, int maxInFlightWrites, int maxKeyQueueDepth, long minCommitMillis,
+                             LockByKey lock) {
+    this.inFlight = new Semaphore(maxInFlight);
+    this.inFlightWrites = new Semaphore(Math.min(maxInFlightWrites, maxInFlight));
+    this.maxKeyQueueDepth = maxKeyQueueDepth;
+    this.minCommitMillis = minCommitMillis;
+    this.lock = lock;
+  }
+
+  /**
+   * Admits a GET. Every admitted read must be followed by a call to releaseRead.
+   * @return false if the request should be rejected
+   */
+  public boolean tryAdmitRead() {
+    return inFlight.tryAcquire();
+  }
+
+  public void releaseRead() {
+    inFlight.release();
+  }
+
+  /**
+   * Admits a write on a key. Every admitted write must be followed by a call to releaseWrite.
+   * @return ADMITTED, or the reason the request should be rejected
+   */
+  public Admission tryAdmitWrite(String key) {
+    if (lock.queueLength(key) >= maxKeyQueueDepth) {
+      return Admission.OVERLOADED;
+    }
+    return tryAdmit();
+  }
+
+  /**
+   * Admits a transaction writing several keys, it counts as a single write against the limits.
+   * Every admitted write must be followed by a call to releaseWrite.
+   * @return ADMITTED, or the reason the request should be rejected
+   */
+  public Admission tryAdmitWrite(Collection<String> keys) {
+    for (String key : keys) {
+      if (lock.queueLength(key) >= maxKeyQueueDepth) {
+        return Admission.OVERLOADED;
+      }
+    }
+    return tryAdmit();
+  }
+
+  public void releaseWrite() {
+    inFlight.release();
+    inFlightWrites.release();
+  }
+
+  private Admission tryAdmit() {
+    if (!hasTimeForCommit()) {
+      return Admission.DEADLINE_TOO_CLOSE;
+    }
+    if (!inFlightWrites.tryAcquire()) {
+      return Admission.OVERLOADED;
+    }
+    if (!inFlight.tryAcquire()) {
+      inFlightWrites.release();
+      return Admission.OVERLOADED;
+    }
+    return Admission.ADMITTED;
+  }
+
+  /**
+   * Checks whether the calling client is still waiting and has enough time left for the next prepare of a two phase
+   * commit round.
+   */
+  public boolean hasTimeForCommit() {
+    Context context = Context.current();
+    if (context.isCancelled()) {
+      return false;
+    }
+    Deadline deadline = context.getDeadline();
+    return deadline == null || deadline.timeRemaining(TimeUnit.MILLISECONDS) >= minCommitMillis;
+  }
+}
@@ -0,0 +1,375 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import kvGrpc.Membership;
+import util.LoggerUtil;
+
+/**
+ * Keeps track of the servers that make up the cluster. The members are held in a view numbered by an epoch, and
+ * every change to the members creates a view with the next epoch. Views travel with the heartbeats, and a server
+ * that sees a view with a higher epoch than its own adopts it, so all servers converge on the same members.
+ * A server that is not part of a cluster yet keeps asking the seed servers to let it join. Only the first seed starts
+ * a new cluster, and only when none of the others lets it in, so a server that restarts gets the data back from the
+ * cluster it was part of instead of starting over on its own.
+ * Heartbeat replies feed a phi accrual failure detector per peer, which lets writes fail right away when a peer
+ * is unreachable instead of waiting for the RPC deadline.
+ */
+public class ClusterMembership {
+  private static final long HEARTBEAT_INTERVAL_MILLIS = 500;
+  private static final long HEARTBEAT_DEADLINE_MILLIS = 1000;
+  private static final long JOIN_DEADLINE_MILLIS = 1000;
+  private static final double PHI_THRESHOLD = 8.0;
+
+  private final Membership.Member self;
+  private final List<Membership.Member> seeds;
+  private final Map<String, VersionedValue> kvMap;
+  private final ReadIndex readIndex;
+
+  private final Map<String, ServerInstance> instances = new ConcurrentHashMap<>();
+  private final Map<String, PhiAccrualFailureDetector> detectors = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+  private volatile Membership.ClusterView view;
+  private volatile Peers peers;
+  // false until this server has the cluster's data, writes and votes are refused till then so it cannot diverge
+  private volatile boolean joined;
+
+  /**
+   * @param self this server
+   * @param seeds servers to ask when joining the cluster, this server may be one of them
+   * @param kvMap the key value store, filled with a snapshot from the cluster on join
+   * @param readIndex moved past the versions in the snapshot, so writes coordinated here get newer versions
+   */
+  public ClusterMembership(Membership.Member self, List<Membership.Member> seeds, Map<String, VersionedValue> kvMap,
+                           ReadIndex readIndex) {
+    this.self = self;
+    this.seeds = seeds;
+    this.kvMap = kvMap;
+    this.readIndex = readIndex;
+    this.view = Membership.ClusterView.newBuilder().setEpoch(0).addMembers(self).build();
+    this.peers = new Peers(0, membersHash(view), List.of());
+    // a server that is its own only seed is a cluster of one
+    this.joined = seeds.stream().allMatch(seed -> id(seed).equals(id(self)));
+  }
+
+  public void start() {
+    scheduler.scheduleAtFixedRate(this::tick, 0, HEARTBEAT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Tells the other servers that this one is leaving and stops heartbeating.
+   */
+  public void leave() {
+    scheduler.shutdownNow();
+    Membership.LeaveRequest request = Membership.LeaveRequest.newBuilder().setMember(self).build();
+    for (ServerInstance server : peers.getServers()) {
+      try {
+        server.getMembershipBlockingStub().withDeadlineAfter(JOIN_DEADLINE_MILLIS, TimeUnit.MILLISECONDS)
+                .leave(request);
+      } catch (StatusRuntimeException e) {
+        LoggerUtil.writeLog(Level.WARNING, "Could not tell server: " + server.getPort() + " that this one is leaving");
+      }
+    }
+  }
+
+  public Membership.Member getSelf() {
+    return self;
+  }
+
+  public Membership.ClusterView getView() {
+    return view;
+  }
+
+  /**
+   * The other servers in the current view, together with the epoch and members hash that identify it.
+   */
+  public Peers getPeers() {
+    return peers;
+  }
+
+  /**
+   * Whether this server holds the view with the given epoch and members.
+   */
+  public boolean holdsView(long epoch, long membersHash) {
+    return peers.isView(epoch, membersHash);
+  }
+
+  /**
+   * Whether this server has joined a cluster and received its data.
+   */
+  public boolean isJoined() {
+    return joined;
+  }
+
+  /**
+   * Whether a write can be committed with the given servers right now, which needs this server to be part of the
+   * cluster and every one of them to look alive.
+   */
+  public boolean canCommitWith(List<ServerInstance> servers) {
+    if (!joined) {
+      return false;
+    }
+    for (ServerInstance server : servers) {
+      PhiAccrualFailureDetector detector = detectors.get(id(server));
+      if (detector == null || detector.phi() > PHI_THRESHOLD) {
+        LoggerUtil.writeLog(Level.WARNING, "Server: " + server.getPort() + " is suspected to be down");
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Asks every other member for its view, adopting any newer one like a heartbeat would.
+   * @param expected the view to confirm, as returned by getPeers
+   * @param timeoutMillis how long to wait for the answers
+   * @return true if every member answered and holds the same view
+   */
+  public boolean confirmView(Peers expected, long timeoutMillis) {
+    if (peers != expected) {
+      return false;
+    }
+    Membership.HeartbeatRequest request = Membership.HeartbeatRequest.newBuilder().setSender(self).setView(view)
+            .build();
+    for (ServerInstance server : expected.getServers()) {
+      try {
+        Membership.HeartbeatResponse response = server.getMembershipBlockingStub()
+                .withDeadlineAfter(timeoutMillis, TimeUnit.MILLISECONDS).heartbeat(request);
+        merge(response.getView());
+        if (!expected.isView(response.getView().getEpoch(), membersHash(response.getView()))) {
+          LoggerUtil.writeLog(Level.INFO, "Server: " + server.getPort() + " holds view epoch " +
+                  response.getView().getEpoch() + " with members " + members(response.getView()).keySet() +
+                  " instead of epoch " + expected.getEpoch());
+          return false;
+        }
+      } catch (StatusRuntimeException e) {
+        LoggerUtil.writeLog(Level.WARNING, "Could not confirm the view with server: " + server.getPort());
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Whether the server is still part of the current view.
+   */
+  public boolean isMember(ServerInstance server) {
+    return instances.get(id(server)) == server;
+  }
+
+  /**
+   * Adopts the view if it is newer than the current one.
+   * @return the view this server holds afterwards
+   */
+  public synchronized Membership.ClusterView merge(Membership.ClusterView incoming) {
+    if (incoming.getEpoch() > view.getEpoch()) {
+      install(incoming);
+    } else if (incoming.getEpoch() == view.getEpoch() && !members(incoming).equals(members(view))) {
+      // two servers changed the view at the same time, keep everyone either of them knows about
+      Map<String, Membership.Member> union = members(view);
+      union.putAll(members(incoming));
+      install(Membership.ClusterView.newBuilder().setEpoch(view.getEpoch() + 1).addAllMembers(union.values())
+              .build());
+    }
+    return view;
+  }
+
+  public synchronized Membership.ClusterView addMember(Membership.Member member) {
+    Map<String, Membership.Member> members = members(view);
+    if (members.putIfAbsent(id(member), member) == null) {
+      install(Membership.ClusterView.newBuilder().setEpoch(view.getEpoch() + 1).addAllMembers(members.values())
+              .build());
+    }
+    return view;
+  }
+
+  public synchronized Membership.ClusterView removeMember(Membership.Member member) {
+    Map<String, Membership.Member> members = members(view);
+    if (members.remove(id(member)) != null) {
+      install(Membership.ClusterView.newBuilder().setEpoch(view.getEpoch() + 1).addAllMembers(members.values())
+              .build());
+    }
+    return view;
+  }
+
+  private void tick() {
+    // an exception would cancel the scheduled task, so it is only logged
+    try {
+      if (!joined) {
+        join();
+        return;
+      }
+      for (ServerInstance server : peers.getServers()) {
+        heartbeat(server);
+      }
+    } catch (RuntimeException e) {
+      LoggerUtil.writeLog(Level.SEVERE, "Membership round failed: " + e.getMessage());
+    }
+  }
+
+  private void heartbeat(ServerInstance server) {
+    Membership.HeartbeatRequest request = Membership.HeartbeatRequest.newBuilder().setSender(self).setView(view)
+            .build();
+    server.getMembershipStub().withDeadlineAfter(HEARTBEAT_DEADLINE_MILLIS, TimeUnit.MILLISECONDS)
+            .heartbeat(request, new StreamObserver<>() {
+              @Override
+              public void onNext(Membership.HeartbeatResponse response) {
+                PhiAccrualFailureDetector detector = detectors.get(id(server));
+                if (detector != null) {
+                  detector.heartbeat();
+                }
+                merge(response.getView());
+              }
+
+              @Override
+              public void onError(Throwable t) {
+                // a missed heartbeat is what raises the suspicion level, nothing else to do
+              }
+
+              @Override
+              public void onCompleted() {
+              }
+            });
+  }
+
+  private void join() {
+    for (Membership.Member seed : seeds) {
+      if (id(seed).equals(id(self))) {
+        continue;
+      }
+      ServerInstance server = connect(seed);
+      try {
+        Membership.JoinResponse response = server.getMembershipBlockingStub()
+                .withDeadlineAfter(JOIN_DEADLINE_MILLIS, TimeUnit.MILLISECONDS)
+                .join(Membership.JoinRequest.newBuilder().setMember(self).build());
+        for (Map.Entry<String, Membership.VersionedEntry> each : response.getSnapshotMap().entrySet()) {
+          VersionedValue incoming = new VersionedValue(each.getValue().getValue(), each.getValue().getVersion());
+          // never replace a value with an older one
+          kvMap.merge(each.getKey(), incoming,
+                  (local, snapshot) -> snapshot.getVersion() > local.getVersion() ? snapshot : local);
+          readIndex.observe(incoming.getVersion());
+        }
+        merge(response.getView());
+        joined = true;
+        LoggerUtil.writeLog(Level.INFO, "Joined the cluster through server: " + seed.getPort() + " with " +
+                response.getSnapshotCount() + " keys");
+        return;
+      } catch (StatusRuntimeException e) {
+        LoggerUtil.writeLog(Level.INFO, "Seed server: " + seed.getPort() + " did not let this server join: " +
+                e.getStatus().getCode());
+      } finally {
+        server.shutdown();
+      }
+    }
+    if (!seeds.isEmpty() && id(seeds.get(0)).equals(id(self))) {
+      // none of the other seeds is part of a cluster, so there is no data to get back
+      joined = true;
+      LoggerUtil.writeLog(Level.INFO, "No other seed server is part of a cluster, starting a new one");
+    }
+  }
+
+  // the caller holds the lock of this object
+  private void install(Membership.ClusterView newView) {
+    Set<String> current = new HashSet<>();
+    List<ServerInstance> newPeers = new ArrayList<>();
+    for (Membership.Member member : newView.getMembersList()) {
+      String id = id(member);
+      current.add(id);
+      if (id.equals(id(self))) {
+        continue;
+      }
+      newPeers.add(instances.computeIfAbsent(id, k -> connect(member)));
+      detectors.computeIfAbsent(id, k -> new PhiAccrualFailureDetector(HEARTBEAT_INTERVAL_MILLIS));
+    }
+    for (String id : new ArrayList<>(instances.keySet())) {
+      if (!current.contains(id)) {
+        instances.remove(id).shutdown();
+        detectors.remove(id);
+      }
+    }
+    view = newView;
+    peers = new Peers(newView.getEpoch(), membersHash(newView), List.copyOf(newPeers));
+    LoggerUtil.writeLog(Level.INFO, "Cluster view changed to epoch " + newView.getEpoch() + " with members: " +
+            members(newView).keySet());
+  }
+
+  /**
+   * The other servers of one view. A commit round runs with one of these, so that it is tied to the view its servers
+   * were taken from. The epoch alone does not identify a view, two servers that let others join at the same time
+   * each create a view with the next epoch, so the members hash is compared as well.
+   */
+  public static class Peers {
+    private final long epoch;
+    private final long membersHash;
+    private final List<ServerInstance> servers;
+
+    Peers(long epoch, long membersHash, List<ServerInstance> servers) {
+      this.epoch = epoch;
+      this.membersHash = membersHash;
+      this.servers = servers;
+    }
+
+    public long getEpoch() {
+      return epoch;
+    }
+
+    public long getMembersHash() {
+      return membersHash;
+    }
+
+    public boolean isView(long epoch, long membersHash) {
+      return this.epoch == epoch && this.membersHash == membersHash;
+    }
+
+    public List<ServerInstance> getServers() {
+      return servers;
+    }
+  }
+
+  private static ServerInstance connect(Membership.Member member) {
+    return new ServerInstance(member.getPort(), member.getAddress(),
+            ManagedChannelBuilder.forAddress(member.getAddress(), member.getPort()).usePlaintext().build());
+  }
+
+  // 64 bit FNV-1a hash of the sorted member ids, the same on every server whatever order the members are listed in
+  private static long membersHash(Membership.ClusterView view) {
+    List<String> ids = new ArrayList<>(members(view).keySet());
+    Collections.sort(ids);
+    long hash = 0xcbf29ce484222325L;
+    for (char each : String.join(",", ids).toCharArray()) {
+      hash = (hash ^ each) * 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  private static Map<String, Membership.Member> members(Membership.ClusterView view) {
+    Map<String, Membership.Member> members = new LinkedHashMap<>();
+    for (Membership.Member member : view.getMembersList()) {
+      members.put(id(member), member);
+    }
+    return members;
+  }
+
+  private static String id(Membership.Member member) {
+    return member.getAddress() + ":" + member.getPort();
+  }
+
+  private static String id(ServerInstance server) {
+    return server.getAddress() + ":" + server.getPort();
+  }
+}
@@ -0,0 +1,122 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import io.grpc.StatusRuntimeException;
+import kvGrpc.Twophase;
+import util.LoggerUtil;
+
+/**
+ * Delivers the commit phase in the background once a two phase commit has been decided, so the coordinator can
+ * answer its client right away. Every peer gets its own queue and worker thread. Commits queued for a peer are
+ * sent together in a CommitBatch call, in the order they were decided, and the same batch is resent until the
+ * peer acknowledges it. Each commit carries a per peer sequence number so that a peer which applied a batch
+ * whose acknowledgement got lost skips it when it arrives again.
+ */
+public class CommitDispatcher {
+  private static final int MAX_BATCH_SIZE = 64;
+  private static final long INITIAL_BACKOFF_MILLIS = 50;
+  private static final long MAX_BACKOFF_MILLIS = 1000;
+
+  private final Map<String, PeerQueue> queues = new ConcurrentHashMap<>();
+  private final String incarnation = UUID.randomUUID().toString();
+  private final ClusterMembership membership;
+  private final int port;
+
+  public CommitDispatcher(ClusterMembership membership, int port) {
+    this.membership = membership;
+    this.port = port;
+  }
+
+  /**
+   * Queues a decided commit for every server. The caller must hold the lock of the key, which keeps commits for
+   * the same key in decision order on every queue.
+   * @param servers the servers that voted to commit
+   * @param request the commit, its sequence is assigned per server
+   */
+  public void dispatch(List<ServerInstance> servers, Twophase.CommitRequest request) {
+    for (ServerInstance server : servers) {
+      queues.compute(id(server), (k, queue) -> queue == null || queue.server != server
+              ? new PeerQueue(server) : queue).add(request);
+    }
+  }
+
+  private static String id(ServerInstance server) {
+    return server.getAddress() + ":" + server.getPort();
+  }
+
+  /**
+   * Queue and worker thread for one peer.
+   */
+  private class PeerQueue implements Runnable {
+    private final ServerInstance server;
+    private final BlockingQueue<Twophase.CommitRequest> pending = new LinkedBlockingQueue<>();
+    private long nextSequence = 1;
+
+    PeerQueue(ServerInstance server) {
+      this.server = server;
+      Thread worker = new Thread(this, "commit-dispatcher-" + server.getPort());
+      worker.setDaemon(true);
+      worker.start();
+    }
+
+    synchronized void add(Twophase.CommitRequest request) {
+      pending.add(request.toBuilder().setSequence(nextSequence++).build());
+    }
+
+    @Override
+    public void run() {
+      List<Twophase.CommitRequest> batch = new ArrayList<>();
+      while (true) {
+        try {
+          batch.add(pending.take());
+        } catch (InterruptedException e) {
+          return;
+        }
+        pending.drainTo(batch, MAX_BATCH_SIZE - 1);
+        Twophase.BatchCommitRequest request = Twophase.BatchCommitRequest.newBuilder().addAllRequests(batch)
+                .setOriginServer(String.valueOf(port)).setIncarnation(incarnation).build();
+        if (!sendUntilAcknowledged(request)) {
+          // the server left the cluster, whatever is still queued for it can never be delivered
+          queues.remove(id(server), this);
+          LoggerUtil.writeLog(Level.WARNING, "Server: " + server.getPort() + " left the cluster, dropping " +
+                  (batch.size() + pending.size()) + " undelivered commits");
+          return;
+        }
+        batch.clear();
+      }
+    }
+
+    private boolean sendUntilAcknowledged(Twophase.BatchCommitRequest request) {
+      long backoffMillis = INITIAL_BACKOFF_MILLIS;
+      while (true) {
+        try {
+          server.getStub().withDeadlineAfter(3, TimeUnit.SECONDS).commitBatch(request);
+          LoggerUtil.writeLog(Level.INFO, "Batch commit message sent to server: " + server.getPort() +
+                  " for " + request.getRequestsCount() + " keys");
+          return true;
+        } catch (StatusRuntimeException e) {
+          LoggerUtil.writeLog(Level.WARNING, "Commit delivery to server: " + server.getPort() +
+                  " failed, retrying in " + backoffMillis + " ms");
+        }
+        if (!membership.isMember(server)) {
+          return false;
+        }
+        try {
+          Thread.sleep(backoffMillis);
+        } catch (InterruptedException e) {
+          return false;
+        }
+        backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+      }
+    }
+  }
+}
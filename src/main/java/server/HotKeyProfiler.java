@@ -0,0 +1,194 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Low overhead profiler that tracks which keys receive the most requests and which keys spend the most time
+ * waiting on their lock. Each metric is counted in a count-min sketch so memory stays fixed regardless of the
+ * number of keys, and a small bounded table of heavy hitter candidates remembers the key names worth reporting.
+ * Only a key whose estimate beats the weakest candidate takes the synchronized path, so cold keys cost a few
+ * atomic increments per request.
+ */
+public class HotKeyProfiler {
+  private final int candidateCapacity;
+
+  private volatile HeavyHitters requests;
+  private volatile HeavyHitters lockWaits;
+  private volatile long windowStartMillis;
+
+  /**
+   * @param candidateCapacity number of distinct keys remembered per metric. This should be a few times larger
+   *                          than the biggest top-K that will be asked for.
+   */
+  public HotKeyProfiler(int candidateCapacity) {
+    this.candidateCapacity = candidateCapacity;
+    reset();
+  }
+
+  /**
+   * Records a single request on a key, at the time it acquired the key lock.
+   * @param key the key that was requested
+   * @param waitNanos how long the caller had to wait for the lock, or for the pending write when it reads without it
+   */
+  public void record(String key, long waitNanos) {
+    requests.add(key, 1);
+    if (waitNanos > 0) {
+      lockWaits.add(key, waitNanos);
+    }
+  }
+
+  /**
+   * Returns the keys with the highest request counts in the current window.
+   * @param k number of keys to return
+   */
+  public List<KeyStats> topByRequests(int k) {
+    return top(requests.candidates(), k, Comparator.comparingLong(KeyStats::getRequestCount).reversed());
+  }
+
+  /**
+   * Returns the keys with the highest accumulated lock wait time in the current window.
+   * @param k number of keys to return
+   */
+  public List<KeyStats> topByLockWait(int k) {
+    return top(lockWaits.candidates(), k, Comparator.comparingLong(KeyStats::getLockWaitNanos).reversed());
+  }
+
+  /**
+   * Milliseconds elapsed since the current window started, used to turn counts into rates.
+   */
+  public long windowMillis() {
+    return Math.max(1, System.currentTimeMillis() - windowStartMillis);
+  }
+
+  /**
+   * Starts a new window. Requests racing with the reset may be attributed to either window.
+   */
+  public synchronized void reset() {
+    requests = new HeavyHitters(candidateCapacity);
+    lockWaits = new HeavyHitters(candidateCapacity);
+    windowStartMillis = System.currentTimeMillis();
+  }
+
+  private List<KeyStats> top(Iterable<String> keys, int k, Comparator<KeyStats> order) {
+    HeavyHitters currentRequests = requests;
+    HeavyHitters currentLockWaits = lockWaits;
+    List<KeyStats> stats = new ArrayList<>();
+    for (String key : keys) {
+      stats.add(new KeyStats(key, currentRequests.estimate(key), currentLockWaits.estimate(key)));
+    }
+    stats.sort(order);
+    return stats.subList(0, Math.min(k, stats.size()));
+  }
+
+  /**
+   * A count-min sketch paired with a bounded set of the keys with the largest estimates.
+   */
+  private static class HeavyHitters {
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 2048;
+    private static final long[] SEEDS = {0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L,
+            0xD6E8FEB86659FD93L};
+
+    private final AtomicLongArray sketch = new AtomicLongArray(DEPTH * WIDTH);
+    private final Map<String, Boolean> candidates = new ConcurrentHashMap<>();
+    private final int capacity;
+    // smallest estimate among the candidates once the table is full, a new key needs to beat it to get in
+    private volatile long threshold = 0;
+
+    HeavyHitters(int capacity) {
+      this.capacity = capacity;
+    }
+
+    void add(String key, long amount) {
+      int hash = key.hashCode();
+      long estimate = Long.MAX_VALUE;
+      for (int row = 0; row < DEPTH; row++) {
+        estimate = Math.min(estimate, sketch.addAndGet(row * WIDTH + bucket(hash, row), amount));
+      }
+      if (estimate > threshold && !candidates.containsKey(key)) {
+        admit(key, estimate);
+      }
+    }
+
+    long estimate(String key) {
+      int hash = key.hashCode();
+      long estimate = Long.MAX_VALUE;
+      for (int row = 0; row < DEPTH; row++) {
+        estimate = Math.min(estimate, sketch.get(row * WIDTH + bucket(hash, row)));
+      }
+      return estimate;
+    }
+
+    Iterable<String> candidates() {
+      return candidates.keySet();
+    }
+
+    private synchronized void admit(String key, long estimate) {
+      if (candidates.containsKey(key)) {
+        return;
+      }
+      if (candidates.size() >= capacity) {
+        String weakest = null;
+        long weakestEstimate = Long.MAX_VALUE;
+        for (String candidate : candidates.keySet()) {
+          long candidateEstimate = estimate(candidate);
+          if (candidateEstimate < weakestEstimate) {
+            weakest = candidate;
+            weakestEstimate = candidateEstimate;
+          }
+        }
+        if (estimate <= weakestEstimate) {
+          threshold = weakestEstimate;
+          return;
+        }
+        candidates.remove(weakest);
+      }
+      candidates.put(key, Boolean.TRUE);
+      if (candidates.size() >= capacity) {
+        long lowest = Long.MAX_VALUE;
+        for (String candidate : candidates.keySet()) {
+          lowest = Math.min(lowest, estimate(candidate));
+        }
+        threshold = lowest;
+      }
+    }
+
+    private static int bucket(int hash, int row) {
+      long mixed = (hash ^ SEEDS[row]) * SEEDS[(row + 1) % DEPTH];
+      mixed ^= mixed >>> 31;
+      return (int) ((mixed & Long.MAX_VALUE) % WIDTH);
+    }
+  }
+
+  /**
+   * Estimated counters for one key.
+   */
+  public static class KeyStats {
+    private final String key;
+    private final long requestCount;
+    private final long lockWaitNanos;
+
+    KeyStats(String key, long requestCount, long lockWaitNanos) {
+      this.key = key;
+      this.requestCount = requestCount;
+      this.lockWaitNanos = lockWaitNanos;
+    }
+
+    public String getKey() {
+      return key;
+    }
+
+    public long getRequestCount() {
+      return requestCount;
+    }
+
+    public long getLockWaitNanos() {
+      return lockWaitNanos;
+    }
+  }
+}
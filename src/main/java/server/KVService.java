@@ -3,9 +3,13 @@ package server;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 
+import io.grpc.Context;
+import io.grpc.Deadline;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
@@ -21,17 +25,45 @@ import util.LoggerUtil;
  */
 public class KVService extends KeyValueGrpc.KeyValueImplBase {
 
-  private final Map<String, String> kvMap;
+  private static final String PEER_DOWN_MESSAGE = "At least one of the servers is down. " +
+          "We are working on a fix. Degraded functionality. Only GET will work.";
+  private static final String REJECTED_MESSAGE = "Transaction aborted, the key is being written by another request " +
+          "or the servers did not agree on its current value. Please retry.";
+  private static final String OUT_OF_TIME_MESSAGE = "Transaction aborted, not enough time was left before the " +
+          "deadline to finish the commit round. Please retry with a longer deadline.";
+  // peer calls time out after 3 seconds, a pending write is resolved by then unless its coordinator failed
+  private static final long READ_TIMEOUT_MILLIS = 3000;
+
+  private final Map<String, VersionedValue> kvMap;
+  private final ReadIndex readIndex;
   private final LockByKey lock;
-  private final List<ServerInstance> otherServers;
+  // reads that skip the key lock are counted here, LockByKey counts the others
+  private final HotKeyProfiler profiler;
+  private final ClusterMembership membership;
+  private final AdmissionController admission;
+  // null when commits are delivered synchronously before the client gets its answer
+  private final CommitDispatcher commitDispatcher;
 
   private final int port;
 
-  public KVService(LockByKey lock, List<ServerInstance> otherServers, Map<String, String> kvMap, int port) {
+  /**
+   * Result of a two phase commit round that this server coordinated.
+   */
+  private enum CommitOutcome {
+    COMMITTED, REJECTED, PEER_DOWN, OUT_OF_TIME
+  }
+
+  public KVService(LockByKey lock, HotKeyProfiler profiler, ClusterMembership membership,
+                   Map<String, VersionedValue> kvMap, ReadIndex readIndex, AdmissionController admission,
+                   CommitDispatcher commitDispatcher, int port) {
     super();
     this.lock = lock;
-    this.otherServers = otherServers;
+    this.profiler = profiler;
+    this.membership = membership;
     this.kvMap = kvMap;
+    this.readIndex = readIndex;
+    this.admission = admission;
+    this.commitDispatcher = commitDispatcher;
     this.port = port;
   }
 
@@ -40,91 +72,419 @@ public class KVService extends KeyValueGrpc.KeyValueImplBase {
     String key = request.getKey();
     String value = request.getValue();
 
-    try {
-      lock.lock(key);
+    executeWrite(key, responseObserver, () -> {
       Keyvalue.PutResponse.Builder responseBuilder = Keyvalue.PutResponse.newBuilder();
-      boolean successful = prepareAndCommit(responseBuilder, responseObserver,
-              key, value);
-      if (successful) {
-        boolean commitSucceeded = sendCommitRequests(key, value, Twophase.RequestType.PUT);
-        if (!commitSucceeded) {
-          sendPeerServerDownMessage(responseBuilder, responseObserver);
-          return;
-        }
+      boolean exists = kvMap.containsKey(key);
+      CommitOutcome outcome = twoPhaseCommit(key, value, Twophase.RequestType.PUT);
+      if (outcome != CommitOutcome.COMMITTED) {
+        return responseBuilder.setResponseCode(Status.ABORTED.toString())
+                .setResponseMessage(failureMessage(outcome)).build();
+      }
+      if (exists) {
+        responseBuilder.setResponseCode(Status.OK.toString());
+        responseBuilder.setResponseMessage("Key exists, updated its value to " + value);
+        LoggerUtil.writeLog(Level.INFO, "Key " + key + " updated to contain value: " + value);
+      } else {
+        responseBuilder.setResponseCode(Status.OK.toString());
+        responseBuilder.setResponseMessage("Key " + key + " added and contains value: " + value);
+        LoggerUtil.writeLog(Level.INFO, "Key " + key + " added and contains value: " + value);
+      }
+      return responseBuilder.build();
+    });
+  }
 
-        if (kvMap.containsKey(key)) {
-          responseBuilder.setResponseCode(Status.OK.toString());
-          responseBuilder.setResponseMessage("Key exists, updated its value to " + value);
-          LoggerUtil.writeLog(Level.INFO, "Key " + key + " updated to contain value: " + value);
-        } else {
-          responseBuilder.setResponseCode(Status.OK.toString());
-          responseBuilder.setResponseMessage("Key " + key + " added and contains value: " + value);
-          LoggerUtil.writeLog(Level.INFO, "Key " + key + " added and contains value: " + value);
-        }
-        // key gets added or updated
-        kvMap.put(key, value);
-        // sends value to client
-        responseObserver.onNext(responseBuilder.build());
-        responseObserver.onCompleted();
+  @Override
+  public void compareAndSet(Keyvalue.CompareAndSetRequest request,
+                            StreamObserver<Keyvalue.CompareAndSetResponse> responseObserver) {
+    String key = request.getKey();
+    String newValue = request.getNewValue();
+
+    executeWrite(key, responseObserver, () -> {
+      Keyvalue.CompareAndSetResponse.Builder responseBuilder = Keyvalue.CompareAndSetResponse.newBuilder();
+      String current = currentValue(key);
+      long currentVersion = currentVersion(key);
+      boolean matches = request.hasExpectedValue() || request.hasExpectedVersion()
+              ? (!request.hasExpectedValue() || request.getExpectedValue().equals(current))
+                && (!request.hasExpectedVersion() || request.getExpectedVersion() == currentVersion)
+              : current == null;
+      if (!matches) {
+        LoggerUtil.writeLog(Level.INFO, "Compare and set on key: " + key + " failed, it holds: " + current +
+                " at version " + currentVersion);
+        return responseBuilder.setResponseCode(Status.FAILED_PRECONDITION.toString())
+                .setResponseMessage("Key " + key + " does not hold the expected value")
+                .setCurrentValue(current == null ? "" : current).setCurrentVersion(currentVersion).build();
       }
+      CommitOutcome outcome = twoPhaseCommit(key, newValue, Twophase.RequestType.PUT);
+      if (outcome != CommitOutcome.COMMITTED) {
+        return responseBuilder.setResponseCode(Status.ABORTED.toString())
+                .setResponseMessage(failureMessage(outcome)).build();
+      }
+      LoggerUtil.writeLog(Level.INFO, "Compare and set on key: " + key + " succeeded, value: " + newValue);
+      return responseBuilder.setResponseCode(Status.OK.toString())
+              .setResponseMessage("Key " + key + " set to value: " + newValue).setCurrentValue(newValue)
+              .setCurrentVersion(currentVersion(key)).build();
+    });
+  }
+
+  @Override
+  public void increment(Keyvalue.IncrementRequest request,
+                        StreamObserver<Keyvalue.IncrementResponse> responseObserver) {
+    String key = request.getKey();
+
+    executeWrite(key, responseObserver, () -> {
+      Keyvalue.IncrementResponse.Builder responseBuilder = Keyvalue.IncrementResponse.newBuilder();
+      String current = currentValue(key);
+      long incremented;
+      try {
+        // a missing key counts from zero
+        incremented = Math.addExact(current == null ? 0 : Long.parseLong(current), request.getDelta());
+      } catch (NumberFormatException | ArithmeticException e) {
+        LoggerUtil.writeLog(Level.SEVERE, "Client tried to increment key: " + key + " holding: " + current);
+        return responseBuilder.setResponseCode(Status.FAILED_PRECONDITION.toString())
+                .setResponseMessage("Key " + key + " does not hold a number that can be incremented").build();
+      }
+      CommitOutcome outcome = twoPhaseCommit(key, String.valueOf(incremented), Twophase.RequestType.PUT);
+      if (outcome != CommitOutcome.COMMITTED) {
+        return responseBuilder.setResponseCode(Status.ABORTED.toString())
+                .setResponseMessage(failureMessage(outcome)).build();
+      }
+      LoggerUtil.writeLog(Level.INFO, "Key " + key + " incremented to value: " + incremented);
+      return responseBuilder.setResponseCode(Status.OK.toString())
+              .setResponseMessage("Key " + key + " incremented to value: " + incremented).setValue(incremented).build();
+    });
+  }
+
+  @Override
+  public void append(Keyvalue.AppendRequest request, StreamObserver<Keyvalue.AppendResponse> responseObserver) {
+    String key = request.getKey();
+
+    executeWrite(key, responseObserver, () -> {
+      Keyvalue.AppendResponse.Builder responseBuilder = Keyvalue.AppendResponse.newBuilder();
+      String current = currentValue(key);
+      String appended = (current == null ? "" : current) + request.getValue();
+      CommitOutcome outcome = twoPhaseCommit(key, appended, Twophase.RequestType.PUT);
+      if (outcome != CommitOutcome.COMMITTED) {
+        return responseBuilder.setResponseCode(Status.ABORTED.toString())
+                .setResponseMessage(failureMessage(outcome)).build();
+      }
+      LoggerUtil.writeLog(Level.INFO, "Value appended to key " + key + ", it now contains value: " + appended);
+      return responseBuilder.setResponseCode(Status.OK.toString())
+              .setResponseMessage("Key " + key + " now contains value: " + appended).setValue(appended).build();
+    });
+  }
+
+  @Override
+  public void transaction(Keyvalue.TransactionRequest request,
+                          StreamObserver<Keyvalue.TransactionResponse> responseObserver) {
+    // sorted by key, which is the order every server locks them in
+    TreeMap<String, Keyvalue.WriteOperation> operations = new TreeMap<>();
+    for (Keyvalue.WriteOperation each : request.getOperationsList()) {
+      if (operations.put(each.getKey(), each) != null) {
+        responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("Key " + each.getKey() +
+                " is written more than once in the transaction").asRuntimeException());
+        return;
+      }
+    }
+    if (operations.isEmpty()) {
+      responseObserver.onNext(Keyvalue.TransactionResponse.newBuilder().setResponseCode(Status.OK.toString())
+              .setResponseMessage("Empty transaction").build());
+      responseObserver.onCompleted();
+      return;
+    }
+    AdmissionController.Admission admitted = admission.tryAdmitWrite(operations.keySet());
+    if (admitted != AdmissionController.Admission.ADMITTED) {
+      sendRejection(responseObserver, operations.firstKey(), admitted);
+      return;
+    }
+    try {
+      for (String key : operations.keySet()) {
+        lock.lock(key);
+      }
+      if (!admission.hasTimeForCommit()) {
+        sendDeadlineExceededError(responseObserver, operations.firstKey());
+        return;
+      }
+      responseObserver.onNext(executeTransaction(operations));
+      responseObserver.onCompleted();
     } finally {
-      lock.unlock(key);
+      for (String key : operations.keySet()) {
+        lock.unlock(key);
+      }
+      admission.releaseWrite();
     }
   }
 
-  private boolean prepareAndCommit(Keyvalue.PutResponse.Builder responseBuilder,
-                                   StreamObserver<Keyvalue.PutResponse> responseObserver,
-                                   String key, String value) {
-    List<Twophase.PrepareResponse> prepareResponses = sendPrepareRequests(key, value, Twophase.RequestType.PUT);
+  // runs with the locks of every key in the transaction held
+  private Keyvalue.TransactionResponse executeTransaction(TreeMap<String, Keyvalue.WriteOperation> operations) {
+    Keyvalue.TransactionResponse.Builder responseBuilder = Keyvalue.TransactionResponse.newBuilder();
+    List<Twophase.PrepareRequest> prepareRequests = new ArrayList<>();
+    for (Keyvalue.WriteOperation each : operations.values()) {
+      String current = currentValue(each.getKey());
+      if ((each.hasExpectedValue() && !each.getExpectedValue().equals(current))
+              || (each.hasExpectedVersion() && each.getExpectedVersion() != currentVersion(each.getKey()))) {
+        LoggerUtil.writeLog(Level.INFO, "Transaction failed, key: " + each.getKey() + " holds: " + current);
+        return responseBuilder.setResponseCode(Status.FAILED_PRECONDITION.toString())
+                .setResponseMessage("Key " + each.getKey() + " does not hold the expected value").build();
+      }
+      if (each.getType() == Keyvalue.WriteType.REMOVE && current == null) {
+        return responseBuilder.setResponseCode(Status.NOT_FOUND.toString())
+                .setResponseMessage("Key " + each.getKey() + " not found").build();
+      }
+      Twophase.RequestType requestType = each.getType() == Keyvalue.WriteType.REMOVE
+              ? Twophase.RequestType.DELETE : Twophase.RequestType.PUT;
+      prepareRequests.add(buildPrepareRequest(each.getKey(), each.getValue(), requestType, readIndex.nextVersion()));
+    }
 
-    if (prepareResponses.size() != otherServers.size()) {
-      sendPeerServerDownMessage(responseBuilder, responseObserver);
-      return false;
+    CommitOutcome outcome = twoPhaseCommitBatch(prepareRequests);
+    if (outcome != CommitOutcome.COMMITTED) {
+      return responseBuilder.setResponseCode(Status.ABORTED.toString())
+              .setResponseMessage(failureMessage(outcome)).build();
     }
-    if (!allResponsesPositive(prepareResponses)) {
-      boolean abortSucceeded = sendAbortRequests(key);
-      if (!abortSucceeded) {
-        sendPeerServerDownMessage(responseBuilder, responseObserver);
-        return false;
+    LoggerUtil.writeLog(Level.INFO, "Transaction committed for the keys: " + operations.keySet());
+    return responseBuilder.setResponseCode(Status.OK.toString())
+            .setResponseMessage("Transaction committed for " + operations.size() + " keys").build();
+  }
+
+  // admits the write, holds the key lock and makes sure the client still waits before running the operation
+  private <T> void executeWrite(String key, StreamObserver<T> responseObserver, Supplier<T> operation) {
+    AdmissionController.Admission admitted = admission.tryAdmitWrite(key);
+    if (admitted != AdmissionController.Admission.ADMITTED) {
+      sendRejection(responseObserver, key, admitted);
+      return;
+    }
+    try {
+      lock.lock(key);
+      if (!admission.hasTimeForCommit()) {
+        // the client gave up or is about to while this request waited for the key, so no commit round is started
+        sendDeadlineExceededError(responseObserver, key);
+        return;
       }
+      // sends value to client
+      responseObserver.onNext(operation.get());
+      responseObserver.onCompleted();
+    } finally {
+      lock.unlock(key);
+      admission.releaseWrite();
     }
+  }
 
-    return true;
+  // runs both phases for a single key whose lock is held by the caller, and applies the write locally once
+  // every other server has committed it
+  private CommitOutcome twoPhaseCommit(String key, String value, Twophase.RequestType requestType) {
+    ClusterMembership.Peers peers = membership.getPeers();
+    List<ServerInstance> otherServers = peers.getServers();
+    if (!membership.canCommitWith(otherServers)) {
+      // fail right away instead of waiting for the prepare to a server that is known to be down to time out
+      return CommitOutcome.PEER_DOWN;
+    }
+    long version = readIndex.nextVersion();
+    // reads on this server wait for the write like they would on any other server
+    readIndex.prepared(key, version, peers.getEpoch(), peers.getMembersHash());
+    try {
+      if (viewChanged(peers)) {
+        return CommitOutcome.REJECTED;
+      }
+      Twophase.PrepareRequest prepareRequest = buildPrepareRequest(key, value, requestType, version).toBuilder()
+              .setEpoch(peers.getEpoch()).setMembersHash(peers.getMembersHash()).build();
+      List<ServerInstance> prepared = new ArrayList<>();
+      // servers that voted no without locking anything, they need no abort
+      int refused = 0;
+      boolean allPrepared = true;
+      boolean outOfTime = false;
+      for (ServerInstance server : otherServers) {
+        if (!admission.hasTimeForCommit()) {
+          // the prepare might wait on a busy key past the client's deadline, so the round is given up before it
+          outOfTime = true;
+          break;
+        }
+        try {
+          Twophase.PrepareResponse response = detachedFromClient(() -> server.getStub()
+                  .withDeadlineAfter(3, TimeUnit.SECONDS).prepare(prepareRequest));
+          prepared.add(server);
+          allPrepared &= response.getSuccess();
+          LoggerUtil.writeLog(Level.INFO, "Prepare message sent to server: " + server.getPort() +
+                  " for the key: " + key);
+        } catch (StatusRuntimeException e) {
+          if (isRefusal(e)) {
+            refused++;
+            allPrepared = false;
+          } else {
+            logPeerDown();
+          }
+        }
+      }
+
+      if (outOfTime) {
+        return sendAbortRequests(prepared, key) ? CommitOutcome.OUT_OF_TIME : CommitOutcome.PEER_DOWN;
+      }
+      if (prepared.size() != otherServers.size() || !allPrepared) {
+        // every server that answered the prepare holds the key lock till it hears the outcome
+        boolean abortSucceeded = sendAbortRequests(prepared, key);
+        return prepared.size() + refused == otherServers.size() && abortSucceeded
+                ? CommitOutcome.REJECTED : CommitOutcome.PEER_DOWN;
+      }
+      if (commitDispatcher != null) {
+        // every server voted yes so the outcome is decided, the other servers keep the key locked till their
+        // commit arrives and so never serve the old value
+        applyLocally(key, value, requestType, version);
+        commitDispatcher.dispatch(otherServers, buildCommitRequest(key, value, requestType, version));
+        return CommitOutcome.COMMITTED;
+      }
+      if (!sendCommitRequests(otherServers, key, value, requestType, version)) {
+        return CommitOutcome.PEER_DOWN;
+      }
+      applyLocally(key, value, requestType, version);
+      return CommitOutcome.COMMITTED;
+    } finally {
+      readIndex.resolved(key);
+    }
   }
 
-  private boolean prepareAndCommit(Keyvalue.DeleteResponse.Builder responseBuilder,
-                                   StreamObserver<Keyvalue.DeleteResponse> responseObserver,
-                                   String key, String value) {
-    List<Twophase.PrepareResponse> prepareResponses = sendPrepareRequests(key, value, Twophase.RequestType.DELETE);
+  // same as twoPhaseCommit, but prepares and commits every key of a transaction in one round
+  private CommitOutcome twoPhaseCommitBatch(List<Twophase.PrepareRequest> prepareRequests) {
+    ClusterMembership.Peers peers = membership.getPeers();
+    List<ServerInstance> otherServers = peers.getServers();
+    if (!membership.canCommitWith(otherServers)) {
+      return CommitOutcome.PEER_DOWN;
+    }
+    for (Twophase.PrepareRequest each : prepareRequests) {
+      readIndex.prepared(each.getKey(), each.getVersion(), peers.getEpoch(), peers.getMembersHash());
+    }
+    try {
+      if (viewChanged(peers)) {
+        return CommitOutcome.REJECTED;
+      }
+      Twophase.BatchPrepareRequest batchRequest = Twophase.BatchPrepareRequest.newBuilder()
+              .addAllRequests(prepareRequests).setOriginServer(String.valueOf(port)).setEpoch(peers.getEpoch())
+              .setMembersHash(peers.getMembersHash()).build();
+      List<ServerInstance> prepared = new ArrayList<>();
+      // servers that voted no without locking anything, they need no abort
+      int refused = 0;
+      boolean allPrepared = true;
+      boolean outOfTime = false;
+      for (ServerInstance server : otherServers) {
+        if (!admission.hasTimeForCommit()) {
+          // the prepare might wait on a busy key past the client's deadline, so the round is given up before it
+          outOfTime = true;
+          break;
+        }
+        try {
+          Twophase.PrepareResponse response = detachedFromClient(() -> server.getStub()
+                  .withDeadlineAfter(3, TimeUnit.SECONDS).prepareBatch(batchRequest));
+          prepared.add(server);
+          allPrepared &= response.getSuccess();
+          LoggerUtil.writeLog(Level.INFO, "Batch prepare message sent to server: " + server.getPort() +
+                  " for " + prepareRequests.size() + " keys");
+        } catch (StatusRuntimeException e) {
+          if (isRefusal(e)) {
+            refused++;
+            allPrepared = false;
+          } else {
+            logPeerDown();
+          }
+        }
+      }
+
+      if (outOfTime) {
+        return sendBatchAbortRequests(prepared, prepareRequests) ? CommitOutcome.OUT_OF_TIME : CommitOutcome.PEER_DOWN;
+      }
+      if (prepared.size() != otherServers.size() || !allPrepared) {
+        boolean abortSucceeded = sendBatchAbortRequests(prepared, prepareRequests);
+        return prepared.size() + refused == otherServers.size() && abortSucceeded
+                ? CommitOutcome.REJECTED : CommitOutcome.PEER_DOWN;
+      }
+      if (commitDispatcher != null) {
+        for (Twophase.PrepareRequest each : prepareRequests) {
+          applyLocally(each.getKey(), each.getValue(), each.getRequestType(), each.getVersion());
+          commitDispatcher.dispatch(otherServers,
+                  buildCommitRequest(each.getKey(), each.getValue(), each.getRequestType(), each.getVersion()));
+        }
+        return CommitOutcome.COMMITTED;
+      }
+      if (!sendBatchCommitRequests(otherServers, prepareRequests)) {
+        return CommitOutcome.PEER_DOWN;
+      }
+      for (Twophase.PrepareRequest each : prepareRequests) {
+        applyLocally(each.getKey(), each.getValue(), each.getRequestType(), each.getVersion());
+      }
+      return CommitOutcome.COMMITTED;
+    } finally {
+      for (Twophase.PrepareRequest each : prepareRequests) {
+        readIndex.resolved(each.getKey());
+      }
+    }
+  }
 
-    if (prepareResponses.size() != otherServers.size()) {
-      sendPeerServerDownMessage(responseBuilder, responseObserver);
+  // like a participant, the coordinator checks the view once its own write is registered as pending, so that a
+  // server joining through this one either gets the write in its snapshot or is part of the round
+  private boolean viewChanged(ClusterMembership.Peers peers) {
+    if (membership.holdsView(peers.getEpoch(), peers.getMembersHash())) {
       return false;
     }
-    if (!allResponsesPositive(prepareResponses)) {
-      boolean abortSucceeded = sendAbortRequests(key);
-      if (!abortSucceeded) {
-        sendPeerServerDownMessage(responseBuilder, responseObserver);
-        return false;
-      }
+    LoggerUtil.writeLog(Level.INFO, "Cluster view changed while starting a commit round, giving up");
+    return true;
+  }
+
+  // a server that cannot take part in the round right now answers a prepare with ABORTED, which is a retryable no
+  private boolean isRefusal(StatusRuntimeException e) {
+    if (e.getStatus().getCode() != Status.Code.ABORTED) {
+      return false;
     }
+    LoggerUtil.writeLog(Level.INFO, "Prepare refused: " + e.getStatus().getDescription());
     return true;
   }
 
+  private void applyLocally(String key, String value, Twophase.RequestType requestType, long version) {
+    if (requestType == Twophase.RequestType.DELETE) {
+      kvMap.remove(key);
+    } else {
+      // key gets added or updated
+      kvMap.put(key, new VersionedValue(value, version));
+    }
+    readIndex.committed(key);
+  }
+
+  private String currentValue(String key) {
+    VersionedValue current = kvMap.get(key);
+    return current == null ? null : current.getValue();
+  }
+
+  // version of the key's current value, 0 if the key does not exist
+  private long currentVersion(String key) {
+    VersionedValue current = kvMap.get(key);
+    return current == null ? 0 : current.getVersion();
+  }
+
+  private Twophase.PrepareRequest buildPrepareRequest(String key, String value, Twophase.RequestType requestType,
+                                                      long version) {
+    String oldKeyValue = "";
+    if (kvMap.containsKey(key)) {
+      oldKeyValue = currentValue(key);
+    }
+    return Twophase.PrepareRequest.newBuilder().setKey(key)
+            .setValue(value).setOriginServer(String.valueOf(port)).setOldValue(oldKeyValue)
+            .setRequestTypeValue(requestType.getNumber()).setVersion(version).build();
+  }
+
+  private Twophase.CommitRequest buildCommitRequest(String key, String value, Twophase.RequestType requestType,
+                                                    long version) {
+    return Twophase.CommitRequest.newBuilder().setKey(key)
+            .setValue(value).setOriginServer(String.valueOf(port))
+            .setRequestTypeValue(requestType.getNumber()).setVersion(version).build();
+  }
+
   // sending commit requests to server.
   // Returns a true value if all servers received the message
-  private boolean sendCommitRequests(String key, String value, Twophase.RequestType requestType) {
-    for (ServerInstance server : otherServers) {
+  private boolean sendCommitRequests(List<ServerInstance> servers, String key, String value,
+                                     Twophase.RequestType requestType, long version) {
+    Twophase.CommitRequest request = buildCommitRequest(key, value, requestType, version);
+    for (ServerInstance server : servers) {
       try {
-        Twophase.CommitRequest request = Twophase.CommitRequest.newBuilder().setKey(key)
-                .setValue(value).setOriginServer(String.valueOf(port))
-                .setRequestTypeValue(requestType.getNumber()).build();
-        server.getStub().withDeadlineAfter(3, TimeUnit.SECONDS).commit(request);
+        detachedFromClient(() -> server.getStub().withDeadlineAfter(3, TimeUnit.SECONDS).commit(request));
         LoggerUtil.writeLog(Level.INFO, "Commit message sent to server: " + server.getPort() +
                 " for the key: " + key);
       } catch (StatusRuntimeException e) {
-        LoggerUtil.writeLog(Level.SEVERE, "One of the server seems to be down, " +
-                "please restart all servers otherwise all proceeding calls will fail since KV values are in memory.");
+        logPeerDown();
         return false;
       }
     }
@@ -132,130 +492,240 @@ public class KVService extends KeyValueGrpc.KeyValueImplBase {
     return true;
   }
 
-  private void sendPeerServerDownMessage(Keyvalue.PutResponse.Builder responseBuilder, StreamObserver<Keyvalue.PutResponse> responseObserver) {
-    responseBuilder.setResponseCode(Status.ABORTED.toString());
-    responseBuilder.setResponseMessage("One of the servers is down. We are working on the fix. Degraded functionality. Only GET will work.");
-    responseObserver.onNext(responseBuilder.build());
-    responseObserver.onCompleted();
-  }
-
-  private void sendPeerServerDownMessage(Keyvalue.DeleteResponse.Builder responseBuilder,
-                                         StreamObserver<Keyvalue.DeleteResponse> responseObserver) {
-    responseBuilder.setResponseCode(Status.ABORTED.toString());
-    responseBuilder.setResponseMessage("At least one of the servers is down. " +
-            "We are working on a fix. Degraded functionality. Only GET will work.");
-    responseObserver.onNext(responseBuilder.build());
-    responseObserver.onCompleted();
+  private boolean sendBatchCommitRequests(List<ServerInstance> servers,
+                                          List<Twophase.PrepareRequest> prepareRequests) {
+    Twophase.BatchCommitRequest.Builder requestBuilder = Twophase.BatchCommitRequest.newBuilder()
+            .setOriginServer(String.valueOf(port));
+    for (Twophase.PrepareRequest each : prepareRequests) {
+      requestBuilder.addRequests(buildCommitRequest(each.getKey(), each.getValue(), each.getRequestType(),
+              each.getVersion()));
+    }
+    Twophase.BatchCommitRequest request = requestBuilder.build();
+    for (ServerInstance server : servers) {
+      try {
+        detachedFromClient(() -> server.getStub().withDeadlineAfter(3, TimeUnit.SECONDS).commitBatch(request));
+        LoggerUtil.writeLog(Level.INFO, "Batch commit message sent to server: " + server.getPort() +
+                " for " + prepareRequests.size() + " keys");
+      } catch (StatusRuntimeException e) {
+        logPeerDown();
+        return false;
+      }
+    }
+    return true;
   }
 
   // sending abort requests to server.
   // Returns a true value if all servers received the message
-  private boolean sendAbortRequests(String key) {
-    for (ServerInstance server : otherServers) {
+  private boolean sendAbortRequests(List<ServerInstance> servers, String key) {
+    for (ServerInstance server : servers) {
       try {
         Twophase.AbortRequest request = Twophase.AbortRequest.newBuilder().setKey(key)
                 .setOriginServer(String.valueOf(port)).build();
-        server.getStub().withDeadlineAfter(3, TimeUnit.SECONDS).abort(request);
+        detachedFromClient(() -> server.getStub().withDeadlineAfter(3, TimeUnit.SECONDS).abort(request));
         LoggerUtil.writeLog(Level.INFO, "Abort message sent to server: " + server.getPort() +
                 " for the key: " + key);
       } catch (StatusRuntimeException e) {
-        LoggerUtil.writeLog(Level.SEVERE, "One of the server seems to be down, " +
-                "please restart all servers otherwise all proceeding calls will fail since KV values are in memory.");
+        logPeerDown();
         return false;
       }
     }
     return true;
   }
 
-  private boolean allResponsesPositive(List<Twophase.PrepareResponse> prepareResponses) {
-    for (Twophase.PrepareResponse response : prepareResponses) {
-      if (!response.getSuccess()) return false;
+  private boolean sendBatchAbortRequests(List<ServerInstance> servers,
+                                         List<Twophase.PrepareRequest> prepareRequests) {
+    Twophase.BatchAbortRequest.Builder requestBuilder = Twophase.BatchAbortRequest.newBuilder()
+            .setOriginServer(String.valueOf(port));
+    for (Twophase.PrepareRequest each : prepareRequests) {
+      requestBuilder.addRequests(Twophase.AbortRequest.newBuilder().setKey(each.getKey())
+              .setOriginServer(String.valueOf(port)));
+    }
+    Twophase.BatchAbortRequest request = requestBuilder.build();
+    for (ServerInstance server : servers) {
+      try {
+        detachedFromClient(() -> server.getStub().withDeadlineAfter(3, TimeUnit.SECONDS).abortBatch(request));
+        LoggerUtil.writeLog(Level.INFO, "Batch abort message sent to server: " + server.getPort() +
+                " for " + prepareRequests.size() + " keys");
+      } catch (StatusRuntimeException e) {
+        logPeerDown();
+        return false;
+      }
     }
     return true;
   }
 
-  private List<Twophase.PrepareResponse> sendPrepareRequests(String key, String value,
-                                                             Twophase.RequestType requestType) {
-    List<Twophase.PrepareResponse> responses = new ArrayList<>();
-    String oldKeyValue = "";
-    if (kvMap.containsKey(key)) {
-      oldKeyValue = kvMap.get(key);
+  // a server that voted holds the key lock till it hears the outcome, so peer calls of a round must not be cut off
+  // when the client gives up or its deadline runs out, they only use their own deadline
+  private static <T> T detachedFromClient(Supplier<T> call) {
+    Context peerContext = Context.current().fork();
+    Context previous = peerContext.attach();
+    try {
+      return call.get();
+    } finally {
+      peerContext.detach(previous);
     }
-    for (ServerInstance server : otherServers) {
-      try {
-        Twophase.PrepareRequest request = Twophase.PrepareRequest.newBuilder().setKey(key)
-                .setValue(value).setOriginServer(String.valueOf(port)).setOldValue(oldKeyValue)
-                .setRequestTypeValue(requestType.getNumber()).build();
-        responses.add(server.getStub().withDeadlineAfter(3, TimeUnit.SECONDS).prepare(request));
-        LoggerUtil.writeLog(Level.INFO, "Prepare message sent to server: " + server.getPort() +
-                " for the key: " + key);
-      } catch (StatusRuntimeException e) {
-        LoggerUtil.writeLog(Level.SEVERE, "One of the server seems to be down, " +
-                "please restart all servers otherwise all proceeding calls will fail since KV values are in memory.");
-      }
+  }
+
+  private void logPeerDown() {
+    LoggerUtil.writeLog(Level.SEVERE, "One of the server seems to be down, " +
+            "please restart all servers otherwise all proceeding calls will fail since KV values are in memory.");
+  }
+
+  private static String failureMessage(CommitOutcome outcome) {
+    return switch (outcome) {
+      case REJECTED -> REJECTED_MESSAGE;
+      case OUT_OF_TIME -> OUT_OF_TIME_MESSAGE;
+      default -> PEER_DOWN_MESSAGE;
+    };
+  }
+
+  private void sendRejection(StreamObserver<?> responseObserver, String key,
+                             AdmissionController.Admission admission) {
+    if (admission == AdmissionController.Admission.DEADLINE_TOO_CLOSE) {
+      sendDeadlineExceededError(responseObserver, key);
+    } else {
+      sendOverloadedError(responseObserver, key);
     }
-    return responses;
+  }
+
+  private void sendOverloadedError(StreamObserver<?> responseObserver, String key) {
+    LoggerUtil.writeLog(Level.WARNING, "Request for the key: " + key + " rejected, server is overloaded");
+    responseObserver.onError(Status.RESOURCE_EXHAUSTED.withDescription("Server is overloaded, please retry later")
+            .asRuntimeException());
+  }
+
+  private void sendDeadlineExceededError(StreamObserver<?> responseObserver, String key) {
+    LoggerUtil.writeLog(Level.WARNING, "Request for the key: " + key + " dropped, client deadline is too close");
+    responseObserver.onError(Status.DEADLINE_EXCEEDED.withDescription("Not enough time left to commit")
+            .asRuntimeException());
   }
 
   @Override
   public void get(Keyvalue.GetRequest request, StreamObserver<Keyvalue.GetResponse> responseObserver) {
     String key = request.getKey();
-    String value = kvMap.get(key);
+    Keyvalue.ReadConsistency consistency = request.getConsistency();
 
+    if (consistency == Keyvalue.ReadConsistency.UNRECOGNIZED) {
+      responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("Unknown read consistency level")
+              .asRuntimeException());
+      return;
+    }
+    if (consistency != Keyvalue.ReadConsistency.EVENTUAL && !membership.isJoined()) {
+      // the data is still missing here, only a read that accepts any local value can be served
+      responseObserver.onError(Status.UNAVAILABLE.withDescription("Server has not joined the cluster yet")
+              .asRuntimeException());
+      return;
+    }
+    if (!admission.tryAdmitRead()) {
+      sendOverloadedError(responseObserver, key);
+      return;
+    }
     try {
-      // this lock makes sure if a particular key is on going a two phase commit, the incoming request waits till the value
-      // gets updated
-      lock.lock(key);
-      Keyvalue.GetResponse.Builder responseBuilder = Keyvalue.GetResponse.newBuilder();
-      if (value != null) {
-        responseBuilder.setResponseCode(Status.OK.toString());
-        responseBuilder.setValue(value);
-        responseBuilder.setResponseMessage("The value of key: " + key + " fetched is value: " + value);
-        LoggerUtil.writeLog(Level.INFO, "The value of key: " + key + " fetched is value: " + value);
+      if (consistency == Keyvalue.ReadConsistency.DEFAULT) {
+        // this lock makes sure if a particular key is on going a two phase commit, the incoming request waits till
+        // the value gets updated
+        lock.lock(key);
+        try {
+          responseObserver.onNext(buildGetResponse(key, kvMap.get(key), consistency));
+        } finally {
+          lock.unlock(key);
+        }
+        responseObserver.onCompleted();
+        return;
+      }
+      if (consistency != Keyvalue.ReadConsistency.EVENTUAL) {
+        // the other levels never take the key lock, they only wait for a pending write when it could be missed
+        if (!confirmReadIndex()) {
+          responseObserver.onError(Status.UNAVAILABLE
+                  .withDescription("Could not confirm the cluster view, please retry").asRuntimeException());
+          return;
+        }
+        long toleratedMillis = consistency == Keyvalue.ReadConsistency.LINEARIZABLE ? -1
+                : request.getMaxStalenessMillis();
+        long waitStart = System.nanoTime();
+        boolean resolved = readIndex.awaitPendingWrite(key, toleratedMillis, readTimeoutMillis());
+        // the wait for the pending write takes the place of the wait for the key lock
+        profiler.record(key, System.nanoTime() - waitStart);
+        if (!resolved) {
+          LoggerUtil.writeLog(Level.WARNING, "Read of key: " + key + " timed out waiting for a pending write");
+          responseObserver.onError(Status.DEADLINE_EXCEEDED
+                  .withDescription("Write pending on key " + key + " was not resolved in time").asRuntimeException());
+          return;
+        }
       } else {
-        responseBuilder.setResponseCode(Status.NOT_FOUND.toString());
-        responseBuilder.setResponseMessage("Key " + key + " not found");
-        LoggerUtil.writeLog(Level.SEVERE, "Client tried to fetch key: " + key + " but it was not found");
+        profiler.record(key, 0);
       }
-      // sends value to client
-      responseObserver.onNext(responseBuilder.build());
+      responseObserver.onNext(buildGetResponse(key, kvMap.get(key), consistency));
       responseObserver.onCompleted();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      responseObserver.onError(Status.CANCELLED.withDescription("Read interrupted").asRuntimeException());
     } finally {
-      lock.unlock(key);
+      admission.releaseRead();
+    }
+  }
+
+  // local reads are only complete while every member holds this server's view. A commit in the view shows that,
+  // otherwise the other servers are asked once per view
+  private boolean confirmReadIndex() {
+    ClusterMembership.Peers current = membership.getPeers();
+    if (readIndex.isConfirmed(current.getEpoch(), current.getMembersHash())) {
+      return true;
+    }
+    if (!membership.confirmView(current, readTimeoutMillis())) {
+      return false;
     }
+    readIndex.confirm(current.getEpoch(), current.getMembersHash());
+    return true;
+  }
+
+  private Keyvalue.GetResponse buildGetResponse(String key, VersionedValue current,
+                                                Keyvalue.ReadConsistency consistency) {
+    Keyvalue.GetResponse.Builder responseBuilder = Keyvalue.GetResponse.newBuilder();
+    if (current != null) {
+      responseBuilder.setResponseCode(Status.OK.toString());
+      responseBuilder.setValue(current.getValue());
+      responseBuilder.setVersion(current.getVersion());
+      responseBuilder.setResponseMessage("The value of key: " + key + " fetched is value: " + current.getValue());
+      LoggerUtil.writeLog(Level.INFO, "The value of key: " + key + " fetched is value: " + current.getValue() +
+              " at version " + current.getVersion() + " with consistency " + consistency);
+    } else {
+      responseBuilder.setResponseCode(Status.NOT_FOUND.toString());
+      responseBuilder.setResponseMessage("Key " + key + " not found");
+      LoggerUtil.writeLog(Level.SEVERE, "Client tried to fetch key: " + key + " but it was not found");
+    }
+    return responseBuilder.build();
+  }
+
+  // reads wait for a pending write until the client deadline, or as long as a peer call may take without one
+  private long readTimeoutMillis() {
+    Deadline deadline = Context.current().getDeadline();
+    return deadline == null ? READ_TIMEOUT_MILLIS : deadline.timeRemaining(TimeUnit.MILLISECONDS);
   }
 
   @Override
   public void delete(Keyvalue.DeleteRequest request, StreamObserver<Keyvalue.DeleteResponse> responseObserver) {
     String key = request.getKey();
-    String value = kvMap.get(key);
 
-    try {
-      lock.lock(key);
+    executeWrite(key, responseObserver, () -> {
       Keyvalue.DeleteResponse.Builder responseBuilder = Keyvalue.DeleteResponse.newBuilder();
-
+      String value = currentValue(key);
       if (value == null) {
         responseBuilder.setResponseCode(Status.NOT_FOUND.toString());
         responseBuilder.setResponseMessage("Key " + key + " not found");
         LoggerUtil.writeLog(Level.SEVERE, "Client tried to remove key: " + key + " but it was not found");
-        responseObserver.onNext(responseBuilder.build());
-        responseObserver.onCompleted();
-        return;
+        return responseBuilder.build();
       }
-      boolean successful = prepareAndCommit(responseBuilder, responseObserver, key, value);
-      if (successful) {
-        sendCommitRequests(key, "", Twophase.RequestType.DELETE);
-        kvMap.remove(key);
-        responseBuilder.setResponseCode(Status.OK.toString());
-        responseBuilder.setResponseMessage("Key " + key + " deleted");
-        LoggerUtil.writeLog(Level.INFO, "Client removed the key: " + key);
+      CommitOutcome outcome = twoPhaseCommit(key, "", Twophase.RequestType.DELETE);
+      if (outcome != CommitOutcome.COMMITTED) {
+        return responseBuilder.setResponseCode(Status.ABORTED.toString())
+                .setResponseMessage(failureMessage(outcome)).build();
       }
-      // sends value to client
-      responseObserver.onNext(responseBuilder.build());
-      responseObserver.onCompleted();
-    } finally {
-      lock.unlock(key);
-    }
+      responseBuilder.setResponseCode(Status.OK.toString());
+      responseBuilder.setResponseMessage("Key " + key + " deleted");
+      LoggerUtil.writeLog(Level.INFO, "Client removed the key: " + key);
+      return responseBuilder.build();
+    });
   }
 
 
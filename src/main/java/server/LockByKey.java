@@ -2,6 +2,7 @@ package server;
 
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -13,19 +14,79 @@ import java.util.concurrent.locks.ReentrantLock;
 public class LockByKey {
   private static final int ALLOWED_THREADS = 1;
 
-  private static ConcurrentHashMap<String, Semaphore> semaphores = new ConcurrentHashMap<String, Semaphore>();
+  private static ConcurrentHashMap<String, KeyLock> locks = new ConcurrentHashMap<String, KeyLock>();
+
+  private final HotKeyProfiler profiler;
+
+  public LockByKey(HotKeyProfiler profiler) {
+    this.profiler = profiler;
+  }
 
   public void lock(String key) {
-    Semaphore semaphore = semaphores.compute(key, (k, v) -> v == null ? new Semaphore(ALLOWED_THREADS) : v);
+    Semaphore semaphore = register(key);
+    // uncontended locks skip the clock reads, only waiting callers pay for timing themselves
+    if (semaphore.tryAcquire()) {
+      profiler.record(key, 0);
+      return;
+    }
+    long waitStart = System.nanoTime();
     semaphore.acquireUninterruptibly();
+    profiler.record(key, System.nanoTime() - waitStart);
   }
 
-  public void unlock(String key) {
-    Semaphore semaphore = semaphores.get(key);
-    semaphore.release();
-    if (semaphore.availablePermits() == ALLOWED_THREADS) {
-      semaphores.remove(key, semaphore);
+  /**
+   * Locks the key unless another thread holds it for longer than the timeout.
+   * @return false if the lock was not acquired, the caller must not unlock it then
+   */
+  public boolean tryLock(String key, long timeoutMillis) {
+    Semaphore semaphore = register(key);
+    if (semaphore.tryAcquire()) {
+      profiler.record(key, 0);
+      return true;
+    }
+    long waitStart = System.nanoTime();
+    boolean acquired;
+    try {
+      acquired = semaphore.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      acquired = false;
     }
+    profiler.record(key, System.nanoTime() - waitStart);
+    if (!acquired) {
+      locks.computeIfPresent(key, (k, v) -> --v.users == 0 ? null : v);
+    }
+    return acquired;
+  }
+
+  public void unlock(String key) {
+    locks.computeIfPresent(key, (k, v) -> {
+      v.semaphore.release();
+      return --v.users == 0 ? null : v;
+    });
+  }
+
+  // the entry counts its holder and waiters so that it is only dropped once nobody can still acquire it
+  private Semaphore register(String key) {
+    return locks.compute(key, (k, v) -> {
+      KeyLock keyLock = v == null ? new KeyLock() : v;
+      keyLock.users++;
+      return keyLock;
+    }).semaphore;
+  }
+
+  /**
+   * Estimated number of threads waiting to lock the key.
+   */
+  public int queueLength(String key) {
+    KeyLock keyLock = locks.get(key);
+    return keyLock == null ? 0 : keyLock.semaphore.getQueueLength();
+  }
+
+  // only changed inside the map's compute calls, which run one at a time per key
+  private static class KeyLock {
+    private final Semaphore semaphore = new Semaphore(ALLOWED_THREADS);
+    private int users;
   }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,77 @@
+package server;
+
+import java.util.Map;
+import java.util.logging.Level;
+
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import kvGrpc.ClusterGrpc;
+import kvGrpc.Membership;
+import util.LoggerUtil;
+
+/**
+ * Answers heartbeats and lets servers join or leave the cluster at runtime.
+ */
+public class MembershipService extends ClusterGrpc.ClusterImplBase {
+  // how long a join waits for the writes that were already under way when the server was added
+  private static final long PENDING_WRITES_WAIT_MILLIS = 500;
+
+  private final ClusterMembership membership;
+  private final Map<String, VersionedValue> kvMap;
+  private final ReadIndex readIndex;
+
+  public MembershipService(ClusterMembership membership, Map<String, VersionedValue> kvMap, ReadIndex readIndex) {
+    this.membership = membership;
+    this.kvMap = kvMap;
+    this.readIndex = readIndex;
+  }
+
+  @Override
+  public void heartbeat(Membership.HeartbeatRequest request,
+                        StreamObserver<Membership.HeartbeatResponse> responseObserver) {
+    Membership.ClusterView view = membership.merge(request.getView());
+    responseObserver.onNext(Membership.HeartbeatResponse.newBuilder().setView(view).build());
+    responseObserver.onCompleted();
+  }
+
+  @Override
+  public void join(Membership.JoinRequest request, StreamObserver<Membership.JoinResponse> responseObserver) {
+    LoggerUtil.writeLog(Level.INFO, "Join request received from server: " + request.getMember().getPort());
+    if (!membership.isJoined()) {
+      // this server has no data to hand out yet
+      responseObserver.onError(Status.UNAVAILABLE.withDescription("Server has not joined a cluster yet")
+              .asRuntimeException());
+      return;
+    }
+    Membership.ClusterView view = membership.addMember(request.getMember());
+    // once the view is installed, writes of older views are refused and writes of this view need the new server,
+    // which votes no till it has joined. Only the writes already pending here can still commit without it, so the
+    // snapshot is taken after they are resolved
+    try {
+      if (!readIndex.awaitPendingWrites(PENDING_WRITES_WAIT_MILLIS)) {
+        responseObserver.onError(Status.UNAVAILABLE.withDescription("Writes are still pending, retry the join")
+                .asRuntimeException());
+        return;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      responseObserver.onError(Status.CANCELLED.withDescription("Join interrupted").asRuntimeException());
+      return;
+    }
+    Membership.JoinResponse.Builder responseBuilder = Membership.JoinResponse.newBuilder().setView(view);
+    for (Map.Entry<String, VersionedValue> each : kvMap.entrySet()) {
+      responseBuilder.putSnapshot(each.getKey(), Membership.VersionedEntry.newBuilder()
+              .setValue(each.getValue().getValue()).setVersion(each.getValue().getVersion()).build());
+    }
+    responseObserver.onNext(responseBuilder.build());
+    responseObserver.onCompleted();
+  }
+
+  @Override
+  public void leave(Membership.LeaveRequest request, StreamObserver<Membership.LeaveResponse> responseObserver) {
+    LoggerUtil.writeLog(Level.INFO, "Server: " + request.getMember().getPort() + " is leaving the cluster");
+    Membership.ClusterView view = membership.removeMember(request.getMember());
+    responseObserver.onNext(Membership.LeaveResponse.newBuilder().setView(view).build());
+    responseObserver.onCompleted();
+  }
+}
@@ -0,0 +1,63 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Phi accrual failure detector for a single server, following Hayashibara et al. Instead of a yes or no answer
+ * after a fixed timeout, it turns the time since the last heartbeat into a suspicion level phi, based on the
+ * mean and deviation of recent heartbeat intervals. A phi of 8 means the chance that the server is still up and
+ * its heartbeat is merely late is about 1 in 10^8.
+ */
+public class PhiAccrualFailureDetector {
+  private static final int MAX_SAMPLES = 100;
+  // keeps a perfectly regular heartbeat from making the detector suspect a server after a tiny delay
+  private static final double MIN_STD_DEVIATION_MILLIS = 100;
+
+  private final Deque<Long> intervals = new ArrayDeque<>();
+  private long intervalSum;
+  private long squaredIntervalSum;
+  private long lastHeartbeatMillis;
+
+  /**
+   * @param expectedIntervalMillis how often heartbeats are sent, used until real intervals have been observed
+   */
+  public PhiAccrualFailureDetector(long expectedIntervalMillis) {
+    lastHeartbeatMillis = System.currentTimeMillis();
+    addInterval(expectedIntervalMillis);
+  }
+
+  public synchronized void heartbeat() {
+    long now = System.currentTimeMillis();
+    addInterval(now - lastHeartbeatMillis);
+    lastHeartbeatMillis = now;
+  }
+
+  /**
+   * Current suspicion level, it grows the longer no heartbeat arrives.
+   */
+  public synchronized double phi() {
+    long elapsed = System.currentTimeMillis() - lastHeartbeatMillis;
+    double mean = (double) intervalSum / intervals.size();
+    double variance = (double) squaredIntervalSum / intervals.size() - mean * mean;
+    double deviation = Math.max(Math.sqrt(Math.max(variance, 0)), MIN_STD_DEVIATION_MILLIS);
+    // logistic approximation of the normal distribution's cumulative distribution function
+    double y = (elapsed - mean) / deviation;
+    double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+    if (elapsed > mean) {
+      return -Math.log10(e / (1.0 + e));
+    }
+    return -Math.log10(1.0 - 1.0 / (1.0 + e));
+  }
+
+  private void addInterval(long interval) {
+    if (intervals.size() == MAX_SAMPLES) {
+      long oldest = intervals.removeFirst();
+      intervalSum -= oldest;
+      squaredIntervalSum -= oldest * oldest;
+    }
+    intervals.addLast(interval);
+    intervalSum += interval;
+    squaredIntervalSum += interval * interval;
+  }
+}
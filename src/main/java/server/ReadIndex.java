@@ -0,0 +1,150 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tracks the commit index of this server and the writes it has prepared but not yet seen the outcome of.
+ * Within one view of the cluster every write needs the vote of every member, and a server that joins gets every
+ * write of the earlier views in its snapshot. So once this server knows that all members hold the same view as it
+ * does, any write that has been decided is either applied here already or still pending here, and a read that waits
+ * for the write pending on its key is guaranteed to see every write acknowledged before it, without taking the key
+ * lock. A commit in the current view proves that the members agree on it. Otherwise the view has to be confirmed
+ * with the other servers first.
+ */
+public class ReadIndex {
+  private final AtomicLong commitIndex = new AtomicLong();
+  private final Map<String, PendingWrite> pendingWrites = new ConcurrentHashMap<>();
+  // latest view that every member was seen to hold, null till there is one
+  private final AtomicReference<View> confirmedView = new AtomicReference<>();
+
+  /**
+   * Version for a new write coordinated by this server. The caller holds the key lock, so every earlier write to
+   * the key has been applied here and has a smaller version.
+   */
+  public long nextVersion() {
+    return commitIndex.incrementAndGet();
+  }
+
+  /**
+   * Keeps the commit index ahead of every version seen from other servers.
+   */
+  public void observe(long version) {
+    commitIndex.accumulateAndGet(version, Math::max);
+  }
+
+  /**
+   * Records that this server voted to commit a write to the key in the view with the given epoch and members.
+   */
+  public void prepared(String key, long version, long epoch, long membersHash) {
+    observe(version);
+    pendingWrites.put(key, new PendingWrite(new View(epoch, membersHash)));
+  }
+
+  /**
+   * Records that the pending write to the key was committed, which means every member voted for it in its view.
+   */
+  public void committed(String key) {
+    PendingWrite pending = pendingWrites.get(key);
+    if (pending != null) {
+      confirm(pending.view.epoch, pending.view.membersHash);
+    }
+    resolved(key);
+  }
+
+  /**
+   * Records that the pending write to the key was committed or aborted, and wakes up the reads waiting for it.
+   */
+  public void resolved(String key) {
+    PendingWrite pending = pendingWrites.remove(key);
+    if (pending != null) {
+      synchronized (pending) {
+        pending.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Records that every member holds the view with the given epoch and members.
+   */
+  public void confirm(long epoch, long membersHash) {
+    View confirmed = new View(epoch, membersHash);
+    confirmedView.accumulateAndGet(confirmed, (current, next) ->
+            current == null || next.epoch >= current.epoch ? next : current);
+  }
+
+  /**
+   * Whether every member was seen to hold the view with the given epoch and members, local reads can be served in
+   * it then.
+   */
+  public boolean isConfirmed(long epoch, long membersHash) {
+    View confirmed = confirmedView.get();
+    return confirmed != null && confirmed.epoch == epoch && confirmed.membersHash == membersHash;
+  }
+
+  /**
+   * Waits until the local value of the key is recent enough. That is the case when no write is pending on the key,
+   * or when the pending write was prepared no more than toleratedMillis ago, so the local value cannot be more
+   * than that far behind.
+   * @param toleratedMillis how stale the value may be, -1 always waits for the pending write
+   * @param timeoutMillis how long to wait at most
+   * @return false if the pending write was not resolved in time
+   */
+  public boolean awaitPendingWrite(String key, long toleratedMillis, long timeoutMillis) throws InterruptedException {
+    PendingWrite pending = pendingWrites.get(key);
+    if (pending == null || (toleratedMillis >= 0
+            && System.currentTimeMillis() - pending.preparedAtMillis <= toleratedMillis)) {
+      return true;
+    }
+    return awaitResolved(key, pending, System.currentTimeMillis() + timeoutMillis);
+  }
+
+  /**
+   * Waits until every write pending right now has been committed or aborted.
+   * @return false if some of them were not resolved in time
+   */
+  public boolean awaitPendingWrites(long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    for (Map.Entry<String, PendingWrite> each : new ArrayList<>(pendingWrites.entrySet())) {
+      if (!awaitResolved(each.getKey(), each.getValue(), deadline)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean awaitResolved(String key, PendingWrite pending, long deadline) throws InterruptedException {
+    synchronized (pending) {
+      while (pendingWrites.get(key) == pending) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          return false;
+        }
+        pending.wait(remaining);
+      }
+    }
+    return true;
+  }
+
+  private static class PendingWrite {
+    private final long preparedAtMillis = System.currentTimeMillis();
+    private final View view;
+
+    PendingWrite(View view) {
+      this.view = view;
+    }
+  }
+
+  private static class View {
+    private final long epoch;
+    private final long membersHash;
+
+    View(long epoch, long membersHash) {
+      this.epoch = epoch;
+      this.membersHash = membersHash;
+    }
+  }
+}
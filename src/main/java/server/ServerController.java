@@ -10,6 +10,9 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -17,12 +20,12 @@ import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
-import kvGrpc.TPCGrpc;
+import kvGrpc.Membership;
 import util.LoggerUtil;
 
 /**
- * Orchestrates the functionality of the Server. Discovers other servers and saves their instance to call them
- * remotely for the Two Phase Commit.
+ * Orchestrates the functionality of the Server. Joins the cluster through the seed servers, whose members are
+ * then called remotely for the Two Phase Commit.
  */
 public class ServerController {
   private Server grpcServer;
@@ -34,11 +37,34 @@ public class ServerController {
 
   private static final String serverFilePath = "liveServers.txt";
 
+  // number of distinct keys the hot key profiler remembers per metric
+  private static final int HOT_KEY_CANDIDATES = 64;
+
+  // how often the top keys get logged, 0 turns periodic logging off. Set with -Dkv.hotKeys.logSeconds=<seconds>
+  private static final long HOT_KEY_LOG_SECONDS = Long.getLong("kv.hotKeys.logSeconds", 0);
+  private static final int HOT_KEY_LOG_TOP_K = 5;
+
+  // admission control limits, each can be overridden with the matching -Dkv.admission.* system property
+  private static final int MAX_IN_FLIGHT = Integer.getInteger("kv.admission.maxInFlight", 256);
+  private static final int MAX_IN_FLIGHT_WRITES = Integer.getInteger("kv.admission.maxInFlightWrites", 64);
+  private static final int MAX_KEY_QUEUE_DEPTH = Integer.getInteger("kv.admission.maxKeyQueueDepth", 8);
+
+  // a prepare waits this long for a key locked by another write before voting no. Must stay below the 3 second peer
+  // call deadline, otherwise two servers writing the same keys wait on each other till their calls time out
+  private static final long PREPARE_LOCK_WAIT_MILLIS = Long.getLong("kv.prepare.lockWaitMillis", 500);
+  // every prepare may wait on a busy key like above and then needs a round trip, so a write is only started, and only
+  // sends each of its prepares, with at least that much time left before the client's deadline
+  private static final long MIN_COMMIT_MILLIS = Long.getLong("kv.admission.minCommitMillis",
+          PREPARE_LOCK_WAIT_MILLIS + 100);
+
+  // answer clients as soon as a write is decided and deliver the commit phase in the background, -Dkv.commit.async=true
+  private static final boolean ASYNC_COMMIT = Boolean.getBoolean("kv.commit.async");
+
   public static void main(String[] args) throws IOException, InterruptedException {
     ServerController controller = new ServerController();
     int port = Integer.parseInt(args[0]);
-    List<ServerInstance> otherServers = discoverOtherServers(port, "localhost");
-    controller.grpcStart(port, otherServers);
+    List<Membership.Member> seeds = readSeedServers();
+    controller.grpcStart(port, seeds);
   }
 
   private static void writeToFile(List<ServerInstance> servers) throws IOException {
@@ -66,37 +92,52 @@ public class ServerController {
     return fw;
   }
 
-  private static List<ServerInstance> discoverOtherServers(int currServerPort, String currServerAddr) throws IOException {
-    List<ServerInstance> servers = new ArrayList<>();
+  // the servers in the file are only used as seeds to join the cluster, the members are tracked at runtime after that
+  private static List<Membership.Member> readSeedServers() throws IOException {
+    List<Membership.Member> seeds = new ArrayList<>();
     BufferedReader reader = new BufferedReader(new FileReader(serverFilePath));
     String line = "";
     while((line = reader.readLine()) != null) {
-      String[] split = line.split(":");
+      if (line.isBlank()) continue;
+      String[] split = line.trim().split(":");
       // keeping localhost as default
       String addr = split[0];
       int port = Integer.parseInt(split[1]);
-      if(port == currServerPort && addr.equals(currServerAddr)) continue;
-      ManagedChannel managedChannel = ManagedChannelBuilder.forAddress(addr, port)
-              .usePlaintext().build();
-      // synchronous blocking stub is initiated, and this gets used throughout the application
-      TPCGrpc.TPCBlockingStub stub = TPCGrpc.newBlockingStub(managedChannel);
-      servers.add(new ServerInstance(port, addr, stub));
+      seeds.add(Membership.Member.newBuilder().setAddress(addr).setPort(port).build());
     }
-    return servers;
+    return seeds;
   }
 
-  private void grpcStart(int port, List<ServerInstance> otherServers) throws IOException, InterruptedException {
+  private void grpcStart(int port, List<Membership.Member> seeds) throws IOException, InterruptedException {
     if(grpcServer != null) {
       throw new IllegalStateException("The server is already running");
     }
-    Map<String, String> kvMap = new ConcurrentHashMap<>();
-    LockByKey lock = new LockByKey();
-    grpcServer = ServerBuilder.forPort(port).addService(new KVService(lock, otherServers, kvMap, port))
-            .addService(new TwoPhaseService(lock, kvMap, port))
+    Map<String, VersionedValue> kvMap = new ConcurrentHashMap<>();
+    ReadIndex readIndex = new ReadIndex();
+    HotKeyProfiler profiler = new HotKeyProfiler(HOT_KEY_CANDIDATES);
+    LockByKey lock = new LockByKey(profiler);
+    AdminService adminService = new AdminService(profiler, port);
+    AdmissionController admission = new AdmissionController(MAX_IN_FLIGHT, MAX_IN_FLIGHT_WRITES,
+            MAX_KEY_QUEUE_DEPTH, MIN_COMMIT_MILLIS, lock);
+    ClusterMembership membership = new ClusterMembership(
+            Membership.Member.newBuilder().setAddress("localhost").setPort(port).build(), seeds, kvMap, readIndex);
+    CommitDispatcher commitDispatcher = ASYNC_COMMIT ? new CommitDispatcher(membership, port) : null;
+    grpcServer = ServerBuilder.forPort(port)
+            .addService(new KVService(lock, profiler, membership, kvMap, readIndex, admission, commitDispatcher, port))
+            .addService(new TwoPhaseService(lock, membership, kvMap, readIndex, port, PREPARE_LOCK_WAIT_MILLIS))
+            .addService(new MembershipService(membership, kvMap, readIndex))
+            .addService(adminService)
             .build();
 
     grpcServer.start();
     LoggerUtil.writeLog(Level.INFO, "Server has started");
+    membership.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(membership::leave));
+    if (HOT_KEY_LOG_SECONDS > 0) {
+      ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+      reporter.scheduleAtFixedRate(() -> adminService.logTopKeys(HOT_KEY_LOG_TOP_K),
+              HOT_KEY_LOG_SECONDS, HOT_KEY_LOG_SECONDS, TimeUnit.SECONDS);
+    }
     grpcServer.awaitTermination();
   }
 
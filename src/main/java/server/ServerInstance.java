@@ -1,28 +1,45 @@
 package server;
 
-import kvGrpc.KeyValueGrpc;
+import io.grpc.ManagedChannel;
+import kvGrpc.ClusterGrpc;
 import kvGrpc.TPCGrpc;
 
 /**
- * Represents each server instance and stores a gRPC client stub that is reused in the application
+ * Represents each server instance and stores the gRPC client stubs that are reused in the application
  * for server-server communication.
  */
 public class ServerInstance {
   private int port;
   private String address;
 
+  private ManagedChannel channel;
   private TPCGrpc.TPCBlockingStub stub;
+  private ClusterGrpc.ClusterStub membershipStub;
+  private ClusterGrpc.ClusterBlockingStub membershipBlockingStub;
 
-  public ServerInstance(int port, String address, TPCGrpc.TPCBlockingStub stub) {
+  public ServerInstance(int port, String address, ManagedChannel channel) {
     this.port = port;
     this.address = address;
-    this.stub = stub;
+    this.channel = channel;
+    // synchronous blocking stub is initiated, and this gets used throughout the application
+    this.stub = TPCGrpc.newBlockingStub(channel);
+    // heartbeats are sent asynchronously so that a dead server does not hold up the others
+    this.membershipStub = ClusterGrpc.newStub(channel);
+    this.membershipBlockingStub = ClusterGrpc.newBlockingStub(channel);
   }
 
   public TPCGrpc.TPCBlockingStub getStub() {
     return stub;
   }
 
+  public ClusterGrpc.ClusterStub getMembershipStub() {
+    return membershipStub;
+  }
+
+  public ClusterGrpc.ClusterBlockingStub getMembershipBlockingStub() {
+    return membershipBlockingStub;
+  }
+
   public int getPort() {
     return port;
   }
@@ -30,4 +47,11 @@ public class ServerInstance {
   public String getAddress() {
     return address;
   }
+
+  /**
+   * Closes the connection once the server is no longer part of the cluster, calls in flight are allowed to finish.
+   */
+  public void shutdown() {
+    channel.shutdown();
+  }
 }
@@ -1,7 +1,13 @@
 package server;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
 import io.grpc.Context;
@@ -12,54 +18,70 @@ import kvGrpc.Twophase;
 import util.LoggerUtil;
 
 public class TwoPhaseService extends TPCGrpc.TPCImplBase {
-  private Map<String, String> kvMap;
+  private Map<String, VersionedValue> kvMap;
   private LockByKey lock;
+  private final ClusterMembership membership;
+  private final ReadIndex readIndex;
   private final int port;
+  // how long a prepare waits for a key locked by another write before voting no
+  private final long lockWaitMillis;
+  // version of the write each key is locked for by a prepare of this process. A commit or abort that does not match
+  // one, like a background commit resent after this server restarted, must neither apply nor unlock anything
+  private final Map<String, Long> preparedVersions = new ConcurrentHashMap<>();
+  // highest background commit sequence applied per run of each origin server
+  private final Map<String, AtomicLong> appliedSequences = new ConcurrentHashMap<>();
 
-  public TwoPhaseService(LockByKey lock, Map<String, String> kvMap, int port) {
+  public TwoPhaseService(LockByKey lock, ClusterMembership membership, Map<String, VersionedValue> kvMap,
+                         ReadIndex readIndex, int port, long lockWaitMillis) {
     this.kvMap = kvMap;
     this.lock = lock;
+    this.membership = membership;
+    this.readIndex = readIndex;
     this.port = port;
+    this.lockWaitMillis = lockWaitMillis;
   }
 
   @Override
   public void abort(Twophase.AbortRequest request, StreamObserver<Twophase.AbortResponse> responseObserver) {
     LoggerUtil.writeLog(Level.INFO, "Abort message received from server: " + request.getOriginServer() +
             " for the key: " + request.getKey());
-    lock.unlock(request.getKey());
+    releasePrepared(request.getKey());
+    responseObserver.onNext(Twophase.AbortResponse.newBuilder().build());
+    responseObserver.onCompleted();
   }
 
   @Override
   public void prepare(Twophase.PrepareRequest request, StreamObserver<Twophase.PrepareResponse> responseObserver) {
     String key = request.getKey();
-    String value = "";
 
-    lock.lock(key);
+    if (!membership.isJoined()) {
+      sendNotJoinedError(responseObserver, request.getOriginServer());
+      return;
+    }
+    if (!lock.tryLock(key, lockWaitMillis(request.getOriginServer()))) {
+      sendLockTimeoutError(responseObserver, request.getOriginServer(), List.of(key));
+      return;
+    }
     if (Context.current().isCancelled()) {
       // if client call waits for too long and client cancels
       responseObserver.onError(Status.CANCELLED.withDescription("Cancelled by client").asRuntimeException());
       lock.unlock(key);
       return;
     }
+    preparedVersions.put(key, request.getVersion());
 
       LoggerUtil.writeLog(Level.INFO, "Prepare message received from server: " + request.getOriginServer() +
               " for the key: " + request.getKey());
       Twophase.PrepareResponse.Builder responseBuilder = Twophase.PrepareResponse.newBuilder();
-      Twophase.RequestType requestType = request.getRequestType();
       responseBuilder.setOriginServer(String.valueOf(port));
-      if (requestType == Twophase.RequestType.PUT) {
-        value = request.getValue();
-        String oldValue = request.getOldValue();
-        if (kvMap.get(key) == null || kvMap.get(key).equals(oldValue)) {
-          responseBuilder.setMessage("Prepared for Commit").setSuccess(true);
-        } else {
-          responseBuilder.setMessage("Not Prepared. Please abort").setSuccess(false);
-        }
-      } else if (requestType == Twophase.RequestType.DELETE) {
-        if (kvMap.get(key) != null) {
+      if (!canPrepare(request)) {
+        responseBuilder.setMessage("Not Prepared. Please abort").setSuccess(false);
+      } else {
+        readIndex.prepared(key, request.getVersion(), request.getEpoch(), request.getMembersHash());
+        if (inView(request.getEpoch(), request.getMembersHash())) {
           responseBuilder.setMessage("Prepared for Commit").setSuccess(true);
         } else {
-          responseBuilder.setMessage("Not Prepared. Please abort").setSuccess(false);
+          responseBuilder.setMessage("Not Prepared, the cluster view has changed. Please abort").setSuccess(false);
         }
       }
       responseObserver.onNext(responseBuilder.build());
@@ -70,34 +92,204 @@ public class TwoPhaseService extends TPCGrpc.TPCImplBase {
 
   @Override
   public void commit(Twophase.CommitRequest request, StreamObserver<Twophase.CommitResponse> responseObserver) {
-    String key = "";
-    String value = "";
-    try {
-//      lock.lock(key);
-      key = request.getKey();
-      LoggerUtil.writeLog(Level.INFO, "Commit message received from server: " + request.getOriginServer() +
-              " for the key: " + request.getKey());
-      Twophase.CommitResponse.Builder responseBuilder = Twophase.CommitResponse.newBuilder();
-      Twophase.RequestType requestType = request.getRequestType();
-      responseBuilder.setOriginServer(String.valueOf(port));
-      if (requestType == Twophase.RequestType.PUT) {
-        LoggerUtil.writeLog(Level.INFO, "Commit message received from server: " + request.getOriginServer() +
-                " to put the key: " + request.getKey());
-        value = request.getValue();
-        kvMap.put(key, value);
-        LoggerUtil.writeLog(Level.INFO, "Commit complete, Key :" + request.getKey() + " has the value :" + value);
-        responseBuilder.setMessage("Commit Successful").setSuccess(true);
-      } else if (requestType == Twophase.RequestType.DELETE) {
-        LoggerUtil.writeLog(Level.INFO, "Commit message received from server: " + request.getOriginServer() +
-                " to delete the key: " + request.getKey());
-        kvMap.remove(key);
-        responseBuilder.setMessage("Commit Successful").setSuccess(true);
-        LoggerUtil.writeLog(Level.INFO, "Commit complete, Key :" + request.getKey() + " deleted.");
+    LoggerUtil.writeLog(Level.INFO, "Commit message received from server: " + request.getOriginServer() +
+            " for the key: " + request.getKey());
+    Twophase.CommitResponse.Builder responseBuilder = Twophase.CommitResponse.newBuilder();
+    responseBuilder.setOriginServer(String.valueOf(port));
+    commitPrepared(request);
+    responseBuilder.setMessage("Commit Successful").setSuccess(true);
+    responseObserver.onNext(responseBuilder.build());
+    responseObserver.onCompleted();
+  }
+
+  @Override
+  public void abortBatch(Twophase.BatchAbortRequest request, StreamObserver<Twophase.AbortResponse> responseObserver) {
+    LoggerUtil.writeLog(Level.INFO, "Batch abort message received from server: " + request.getOriginServer() +
+            " for " + request.getRequestsCount() + " keys");
+    for (Twophase.AbortRequest each : request.getRequestsList()) {
+      releasePrepared(each.getKey());
+    }
+    responseObserver.onNext(Twophase.AbortResponse.newBuilder().build());
+    responseObserver.onCompleted();
+  }
+
+  @Override
+  public void prepareBatch(Twophase.BatchPrepareRequest request,
+                           StreamObserver<Twophase.PrepareResponse> responseObserver) {
+    // keys are always locked in sorted order so that two transactions over the same keys cannot deadlock. The
+    // coordinator never sends the same key twice in one batch.
+    TreeSet<String> keys = new TreeSet<>();
+    for (Twophase.PrepareRequest each : request.getRequestsList()) {
+      keys.add(each.getKey());
+    }
+    if (!membership.isJoined()) {
+      sendNotJoinedError(responseObserver, request.getOriginServer());
+      return;
+    }
+    List<String> locked = new ArrayList<>();
+    long waitMillis = lockWaitMillis(request.getOriginServer());
+    for (String key : keys) {
+      if (!lock.tryLock(key, waitMillis)) {
+        for (String each : locked) {
+          lock.unlock(each);
+        }
+        sendLockTimeoutError(responseObserver, request.getOriginServer(), keys);
+        return;
       }
-      responseObserver.onNext(responseBuilder.build());
-      responseObserver.onCompleted();
+      locked.add(key);
+    }
+    if (Context.current().isCancelled()) {
+      responseObserver.onError(Status.CANCELLED.withDescription("Cancelled by client").asRuntimeException());
+      for (String key : keys) {
+        lock.unlock(key);
+      }
+      return;
+    }
+    for (Twophase.PrepareRequest each : request.getRequestsList()) {
+      preparedVersions.put(each.getKey(), each.getVersion());
+    }
+
+    LoggerUtil.writeLog(Level.INFO, "Batch prepare message received from server: " + request.getOriginServer() +
+            " for the keys: " + keys);
+    Twophase.PrepareResponse.Builder responseBuilder = Twophase.PrepareResponse.newBuilder()
+            .setOriginServer(String.valueOf(port));
+    boolean prepared = true;
+    for (Twophase.PrepareRequest each : request.getRequestsList()) {
+      prepared &= canPrepare(each);
+    }
+    if (prepared) {
+      for (Twophase.PrepareRequest each : request.getRequestsList()) {
+        readIndex.prepared(each.getKey(), each.getVersion(), request.getEpoch(), request.getMembersHash());
+      }
+    }
+    if (prepared && inView(request.getEpoch(), request.getMembersHash())) {
+      responseBuilder.setMessage("Prepared for Commit").setSuccess(true);
+    } else if (prepared) {
+      responseBuilder.setMessage("Not Prepared, the cluster view has changed. Please abort").setSuccess(false);
+    } else {
+      responseBuilder.setMessage("Not Prepared. Please abort").setSuccess(false);
+    }
+    responseObserver.onNext(responseBuilder.build());
+    responseObserver.onCompleted();
+    // like a single key prepare, the locks are held till the batch is committed or aborted
+  }
+
+  @Override
+  public void commitBatch(Twophase.BatchCommitRequest request,
+                          StreamObserver<Twophase.CommitResponse> responseObserver) {
+    if (request.getIncarnation().isEmpty()) {
+      applyBatch(request.getOriginServer(), request.getRequestsList());
+    } else {
+      // commits delivered in the background may be resent, even while the first attempt is still running here
+      AtomicLong appliedSequence = appliedSequences.computeIfAbsent(
+              request.getOriginServer() + "/" + request.getIncarnation(), k -> new AtomicLong());
+      synchronized (appliedSequence) {
+        List<Twophase.CommitRequest> unapplied = new ArrayList<>();
+        for (Twophase.CommitRequest each : request.getRequestsList()) {
+          if (each.getSequence() > appliedSequence.get()) {
+            unapplied.add(each);
+          }
+        }
+        applyBatch(request.getOriginServer(), unapplied);
+        for (Twophase.CommitRequest each : unapplied) {
+          appliedSequence.set(Math.max(appliedSequence.get(), each.getSequence()));
+        }
+      }
+    }
+    responseObserver.onNext(Twophase.CommitResponse.newBuilder().setOriginServer(String.valueOf(port))
+            .setMessage("Commit Successful").setSuccess(true).build());
+    responseObserver.onCompleted();
+  }
+
+  private void applyBatch(String originServer, List<Twophase.CommitRequest> requests) {
+    LoggerUtil.writeLog(Level.INFO, "Batch commit message received from server: " + originServer +
+            " for " + requests.size() + " keys");
+    for (Twophase.CommitRequest each : requests) {
+      commitPrepared(each);
+    }
+  }
+
+  // applies the commit and releases the key, if this process holds the key for the same write
+  private void commitPrepared(Twophase.CommitRequest request) {
+    String key = request.getKey();
+    if (!preparedVersions.remove(key, request.getVersion())) {
+      LoggerUtil.writeLog(Level.WARNING, "Ignoring commit from server: " + request.getOriginServer() +
+              " for the key: " + key + ", no prepare for version " + request.getVersion() + " is held here");
+      return;
+    }
+    try {
+      applyCommit(request);
     } finally {
       lock.unlock(key);
     }
   }
+
+  private void releasePrepared(String key) {
+    if (preparedVersions.remove(key) == null) {
+      LoggerUtil.writeLog(Level.WARNING, "Ignoring abort for the key: " + key + ", no prepare is held here");
+      return;
+    }
+    readIndex.resolved(key);
+    lock.unlock(key);
+  }
+
+  // checked once the write is registered as pending, so that a join either waits for it or the round is refused,
+  // see MembershipService.join
+  private boolean inView(long epoch, long membersHash) {
+    return membership.holdsView(epoch, membersHash);
+  }
+
+  // a server that has not got the cluster's data yet must not vote, or writes would commit without it having them
+  private void sendNotJoinedError(StreamObserver<Twophase.PrepareResponse> responseObserver, String originServer) {
+    LoggerUtil.writeLog(Level.INFO, "Prepare from server: " + originServer + " rejected, this server has not " +
+            "joined the cluster yet");
+    responseObserver.onError(Status.ABORTED.withDescription("Server has not joined the cluster yet")
+            .asRuntimeException());
+  }
+
+  // when two servers coordinate writes to the same key at once, each holds the key locally while its prepare waits
+  // on the other. Prepares from the server with the lower port wait longer, so that one of them gets through
+  private long lockWaitMillis(String originServer) {
+    return Integer.parseInt(originServer) < port ? lockWaitMillis : lockWaitMillis / 10;
+  }
+
+  // the key stays locked by a write another server coordinates, voting no lets both coordinators give up instead of
+  // waiting on each other till their deadlines. No lock is held, so the coordinator must not send an abort for it
+  private void sendLockTimeoutError(StreamObserver<Twophase.PrepareResponse> responseObserver, String originServer,
+                                    Collection<String> keys) {
+    LoggerUtil.writeLog(Level.INFO, "Prepare from server: " + originServer + " rejected, keys: " + keys +
+            " are locked by another write");
+    responseObserver.onError(Status.ABORTED.withDescription("Keys are locked by another write").asRuntimeException());
+  }
+
+  // checks whether this server agrees with the coordinator on the state of the key, the caller holds its lock
+  private boolean canPrepare(Twophase.PrepareRequest request) {
+    VersionedValue current = kvMap.get(request.getKey());
+    if (request.getRequestType() == Twophase.RequestType.PUT) {
+      return current == null || current.getValue().equals(request.getOldValue());
+    }
+    return current != null;
+  }
+
+  private void applyCommit(Twophase.CommitRequest request) {
+    String key = request.getKey();
+    VersionedValue current = kvMap.get(key);
+    if (current != null && current.getVersion() >= request.getVersion()) {
+      // the value here is already newer, the commit must not bring an older one back
+      LoggerUtil.writeLog(Level.WARNING, "Ignoring commit of version " + request.getVersion() + " for the key: " +
+              key + ", it is at version " + current.getVersion());
+    } else if (request.getRequestType() == Twophase.RequestType.PUT) {
+      LoggerUtil.writeLog(Level.INFO, "Commit message received from server: " + request.getOriginServer() +
+              " to put the key: " + key);
+      kvMap.put(key, new VersionedValue(request.getValue(), request.getVersion()));
+      LoggerUtil.writeLog(Level.INFO, "Commit complete, Key :" + key + " has the value :" + request.getValue());
+    } else if (request.getRequestType() == Twophase.RequestType.DELETE) {
+      LoggerUtil.writeLog(Level.INFO, "Commit message received from server: " + request.getOriginServer() +
+              " to delete the key: " + key);
+      kvMap.remove(key);
+      LoggerUtil.writeLog(Level.INFO, "Commit complete, Key :" + key + " deleted.");
+    }
+    readIndex.observe(request.getVersion());
+    readIndex.committed(key);
+  }
 }
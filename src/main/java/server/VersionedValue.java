@@ -0,0 +1,22 @@
+package server;
+
+/**
+ * A value in the key value store together with the commit index of the write that produced it.
+ */
+public class VersionedValue {
+  private final String value;
+  private final long version;
+
+  public VersionedValue(String value, long version) {
+    this.value = value;
+    this.version = version;
+  }
+
+  public String getValue() {
+    return value;
+  }
+
+  public long getVersion() {
+    return version;
+  }
+}